@@ -0,0 +1,316 @@
+package au.com.rayh;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * A content-addressed store of packaged .ipa files and zipped dSYMs, keyed by a hash of everything that goes into
+ * packaging them.  The store is a plain directory, so it can live on a filesystem shared between nodes and jobs.
+ * Entries are evicted least-recently-used first once the store grows beyond its maximum size.
+ * <p>
+ * Cached files are made read-only and are always copied out of the store, never linked, so that steps which change
+ * the packaged artifacts in the workspace afterwards (re-signing, {@code zip -u}, ...) cannot corrupt the shared entry.
+ *
+ * @author ray
+ */
+public class ArtifactCache implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final String IPA = "app.ipa";
+    private static final String DSYM_ZIP = "dSYM.zip";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String LAST_EVICTION = ".last-eviction";
+
+    /**
+     * How often the store is sized up for eviction, since walking it on a network filesystem is not cheap
+     */
+    static final long EVICTION_INTERVAL = 60L * 60 * 1000;
+
+    /**
+     * How old a half-assembled entry has to be before it is taken to be left over from a node that died while storing it
+     */
+    static final long STALE_TEMP_AGE = 24L * 60 * 60 * 1000;
+
+    private final String cacheDirectory;
+    private final long maxSize;
+    private final long evictionInterval;
+
+    /**
+     * @param cacheDirectory the directory of the store, as seen from the nodes doing the packaging
+     * @param maxSize the size in bytes beyond which the least recently used entries are evicted
+     */
+    public ArtifactCache(String cacheDirectory, long maxSize) {
+        this(cacheDirectory, maxSize, EVICTION_INTERVAL);
+    }
+
+    ArtifactCache(String cacheDirectory, long maxSize, long evictionInterval) {
+        this.cacheDirectory = cacheDirectory;
+        this.maxSize = maxSize;
+        this.evictionInterval = evictionInterval;
+    }
+
+    public String getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Hashes the contents of the .app bundle and embedded profile along with the sdk to give the cache key.  Only what
+     * ends up in the package is hashed: a version number stamped by agvtool is already in the bundle's Info.plist.
+     */
+    public String fingerprint(FilePath app, FilePath embeddedProfile, String sdk) throws IOException, InterruptedException {
+        return app.act(new FingerprintCallable(embeddedProfile==null ? null : embeddedProfile.getRemote(), sdk));
+    }
+
+    /**
+     * Copies the cached artifacts for the key to the given locations.
+     *
+     * @return false if there is no entry for the key, or it could not be copied (e.g. because it was evicted meanwhile)
+     */
+    public boolean restore(String key, FilePath ipa, FilePath dsymZip) throws IOException, InterruptedException {
+        return ipa.act(new RestoreCallable(key, dsymZip.getRemote()));
+    }
+
+    /**
+     * Adds the packaged artifacts to the store under the key, then evicts entries if the store is too big.
+     * The dSYM zip is optional.
+     */
+    public void store(String key, FilePath ipa, FilePath dsymZip) throws IOException, InterruptedException {
+        ipa.act(new StoreCallable(key, dsymZip.getRemote()));
+    }
+
+    private class FingerprintCallable implements FileCallable<String> {
+        private final String embeddedProfile;
+        private final String sdk;
+
+        FingerprintCallable(String embeddedProfile, String sdk) {
+            this.embeddedProfile = embeddedProfile;
+            this.sdk = sdk;
+        }
+
+        public String invoke(File app, VirtualChannel channel) throws IOException {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch(NoSuchAlgorithmException e) {
+                throw new IOException("SHA-1 is not available: " + e.getMessage());
+            }
+
+            update(digest, "sdk:" + sdk);
+            if(embeddedProfile!=null) {
+                File profile = new File(embeddedProfile);
+                update(digest, "profile:" + profile.getName());
+                if(profile.isFile()) {
+                    update(digest, profile);
+                }
+            }
+            updateTree(digest, app, "");
+
+            return Util.toHexString(digest.digest());
+        }
+
+        private void updateTree(MessageDigest digest, File dir, String relativePath) throws IOException {
+            File[] children = dir.listFiles();
+            if(children==null) {
+                throw new IOException("Cannot list " + dir);
+            }
+            Arrays.sort(children);
+            for(File child : children) {
+                String childPath = relativePath + "/" + child.getName();
+                if(child.isDirectory()) {
+                    update(digest, "dir:" + childPath);
+                    updateTree(digest, child, childPath);
+                } else {
+                    update(digest, "file:" + childPath);
+                    update(digest, child);
+                }
+            }
+        }
+
+        private void update(MessageDigest digest, String value) throws IOException {
+            digest.update(value.getBytes("UTF-8"));
+            digest.update((byte)0);
+        }
+
+        private void update(MessageDigest digest, File file) throws IOException {
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while((read = in.read(buffer))>=0) {
+                    digest.update(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    private class RestoreCallable implements FileCallable<Boolean> {
+        private final String key;
+        private final String dsymZip;
+
+        RestoreCallable(String key, String dsymZip) {
+            this.key = key;
+            this.dsymZip = dsymZip;
+        }
+
+        public Boolean invoke(File ipa, VirtualChannel channel) throws IOException {
+            File entry = new File(cacheDirectory, key);
+            File cachedIpa = new File(entry, IPA);
+            if(!cachedIpa.isFile()) {
+                return false;
+            }
+
+            File restoredDsymZip = new File(dsymZip);
+            try {
+                FileUtils.copyFile(cachedIpa, ipa);
+                File cachedDsymZip = new File(entry, DSYM_ZIP);
+                if(cachedDsymZip.isFile()) {
+                    FileUtils.copyFile(cachedDsymZip, restoredDsymZip);
+                }
+            } catch(IOException e) {
+                // don't leave half an artifact behind, the build will package it instead
+                ipa.delete();
+                restoredDsymZip.delete();
+                return false;
+            }
+
+            // mark the entry as recently used
+            entry.setLastModified(System.currentTimeMillis());
+            return true;
+        }
+    }
+
+    private class StoreCallable implements FileCallable<Void> {
+        private final String key;
+        private final String dsymZip;
+
+        StoreCallable(String key, String dsymZip) {
+            this.key = key;
+            this.dsymZip = dsymZip;
+        }
+
+        public Void invoke(File ipa, VirtualChannel channel) throws IOException {
+            File root = new File(cacheDirectory);
+            File entry = new File(root, key);
+            if(entry.isDirectory()) {
+                return null;
+            }
+
+            // assemble the entry next to where it belongs, then move it into place so that readers never see half an entry
+            root.mkdirs();
+            File temp = new File(root, key + "-" + System.nanoTime() + TEMP_SUFFIX);
+            try {
+                File cachedIpa = new File(temp, IPA);
+                FileUtils.copyFile(ipa, cachedIpa);
+                cachedIpa.setReadOnly();
+                File dsym = new File(dsymZip);
+                if(dsym.isFile()) {
+                    File cachedDsymZip = new File(temp, DSYM_ZIP);
+                    FileUtils.copyFile(dsym, cachedDsymZip);
+                    cachedDsymZip.setReadOnly();
+                }
+                temp.setLastModified(System.currentTimeMillis());
+                temp.renameTo(entry);
+            } finally {
+                if(temp.exists()) {
+                    FileUtils.deleteDirectory(temp);
+                }
+            }
+
+            if(isEvictionDue(root)) {
+                evict(root);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Checks, and resets, the marker in the store recording when it was last sized up by any node.
+     */
+    boolean isEvictionDue(File root) throws IOException {
+        File marker = new File(root, LAST_EVICTION);
+        long now = System.currentTimeMillis();
+        if(marker.exists() && now - marker.lastModified() < evictionInterval) {
+            return false;
+        }
+        FileUtils.touch(marker);
+        marker.setLastModified(now);
+        return true;
+    }
+
+    /**
+     * Deletes the least recently used entries until the store fits in {@link #maxSize}, sizing up each entry only once.
+     * Entries left half-assembled by a node that died while storing them are deleted too.
+     */
+    void evict(File root) {
+        File[] children = root.listFiles();
+        if(children==null) return;
+
+        List<File> entries = new ArrayList<File>();
+        Map<File, Long> sizes = new HashMap<File, Long>();
+        final Map<File, Long> lastUsed = new HashMap<File, Long>();
+        long total = 0;
+        long now = System.currentTimeMillis();
+        for(File child : children) {
+            if(child.isDirectory() && child.getName().endsWith(TEMP_SUFFIX)) {
+                if(now - child.lastModified() > STALE_TEMP_AGE) {
+                    try {
+                        FileUtils.deleteDirectory(child);
+                    } catch(IOException e) {
+                        // another node may be deleting it too
+                    }
+                }
+            } else if(child.isDirectory()) {
+                long size = 0;
+                File[] files = child.listFiles();
+                if(files!=null) {
+                    for(File file : files) {
+                        size += file.length();
+                    }
+                }
+                entries.add(child);
+                sizes.put(child, size);
+                lastUsed.put(child, child.lastModified());
+                total += size;
+            }
+        }
+
+        Collections.sort(entries, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return lastUsed.get(a).compareTo(lastUsed.get(b));
+            }
+        });
+
+        for(File entry : entries) {
+            if(total<=maxSize) break;
+            try {
+                FileUtils.deleteDirectory(entry);
+                total -= sizes.get(entry);
+            } catch(IOException e) {
+                // another node may be evicting the same entry
+            }
+        }
+    }
+}
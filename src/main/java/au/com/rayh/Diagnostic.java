@@ -0,0 +1,47 @@
+package au.com.rayh;
+
+import java.io.Serializable;
+
+/**
+ * A compiler error, warning or test failure found in the build log, along with where to find it.
+ *
+ * @author ray
+ */
+public class Diagnostic implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Type {
+        ERROR, WARNING, TEST_FAILURE
+    }
+
+    private final Type type;
+    private final String location;
+    private final String message;
+    private final long offset;
+
+    public Diagnostic(Type type, String location, String message, long offset) {
+        this.type = type;
+        this.location = location;
+        this.message = message;
+        this.offset = offset;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * The byte offset of the start of the line in the build's console log
+     */
+    public long getOffset() {
+        return offset;
+    }
+}
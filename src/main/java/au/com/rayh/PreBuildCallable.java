@@ -0,0 +1,250 @@
+package au.com.rayh;
+
+import hudson.EnvVars;
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import hudson.util.StreamCopyThread;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything that has to happen on the node before xcodebuild is invoked (checking the tools, stamping the version
+ * numbers and cleaning up old output), done in a single call to the node rather than one call per step.
+ *
+ * @author ray
+ */
+public class PreBuildCallable implements FileCallable<PreBuildCallable.Result> {
+    private static final long serialVersionUID = 1L;
+
+    private final String xcodebuildPath;
+    private final String agvtoolPath;
+    private final Map<String,String> envs;
+    private String versionNumber;
+    private String marketingNumber;
+    private String buildDirectory;
+    private String testReportsDirectory;
+
+    public PreBuildCallable(String xcodebuildPath, String agvtoolPath, Map<String,String> envs) {
+        this.xcodebuildPath = xcodebuildPath;
+        this.agvtoolPath = agvtoolPath;
+        this.envs = new HashMap<String,String>(envs);
+    }
+
+    /**
+     * Sets the CFBundleVersion to stamp on the project
+     */
+    public void setVersionNumber(String versionNumber) {
+        this.versionNumber = versionNumber;
+    }
+
+    /**
+     * Sets the CFBundleShortVersionString to stamp on the project
+     */
+    public void setMarketingNumber(String marketingNumber) {
+        this.marketingNumber = marketingNumber;
+    }
+
+    /**
+     * Sets the build directory to clean
+     */
+    public void setBuildDirectory(String buildDirectory) {
+        this.buildDirectory = buildDirectory;
+    }
+
+    /**
+     * Sets the test reports directory to clean
+     */
+    public void setTestReportsDirectory(String testReportsDirectory) {
+        this.testReportsDirectory = testReportsDirectory;
+    }
+
+    public Result invoke(File projectRoot, VirtualChannel channel) throws IOException, InterruptedException {
+        Result result = new Result();
+
+        checkTool(result, "xcodebuild", xcodebuildPath);
+        checkTool(result, "agvtool", agvtoolPath);
+
+        Step version = run(result, projectRoot, "XCode version", "Could not determine the XCode version", xcodebuildPath, "-version");
+        if(version.isFailed()) {
+            result.aborted = true;
+            return result;
+        }
+
+        if(versionNumber!=null) {
+            run(result, projectRoot, "Updating version number (CFBundleVersion) to " + versionNumber,
+                    "Could not set the CFBundleVersion to " + versionNumber,
+                    agvtoolPath, "new-version", "-all", versionNumber);
+        }
+
+        if(marketingNumber!=null) {
+            run(result, projectRoot, "Updating marketing version to " + marketingNumber,
+                    "Could not set marketing version to " + marketingNumber,
+                    agvtoolPath, "new-marketing-version", marketingNumber);
+        }
+
+        if(buildDirectory!=null && delete(result, "Cleaning build directory (" + buildDirectory + ")", new File(buildDirectory)).isFailed()) {
+            result.aborted = true;
+            return result;
+        }
+
+        if(testReportsDirectory!=null && delete(result, "Cleaning up test-reports", new File(testReportsDirectory)).isFailed()) {
+            result.aborted = true;
+            return result;
+        }
+
+        return result;
+    }
+
+    private void checkTool(Result result, String name, String path) {
+        Step step = new Step("Checking " + name, "Cannot find " + name + " with the configured path " + path);
+        long started = System.currentTimeMillis();
+        step.failed = !new File(path).exists();
+        step.duration = System.currentTimeMillis() - started;
+        result.steps.add(step);
+    }
+
+    private Step run(Result result, File pwd, String description, String failureMessage, String... command) throws InterruptedException {
+        Step step = new Step(description, failureMessage);
+        step.tool = new File(command[0]).getName();
+        long started = System.currentTimeMillis();
+        result.steps.add(step);
+
+        ProcessBuilder processBuilder = new ProcessBuilder(Arrays.asList(command)).directory(pwd).redirectErrorStream(true);
+        // apply the build's variables the way the launcher does, e.g. PATH+XYZ prepends to PATH and empty values unset
+        EnvVars environment = new EnvVars(processBuilder.environment());
+        for(Map.Entry<String,String> env : envs.entrySet()) {
+            environment.override(env.getKey(), env.getValue());
+        }
+        processBuilder.environment().clear();
+        processBuilder.environment().putAll(environment);
+        Process process;
+        try {
+            process = processBuilder.start();
+            process.getOutputStream().close();
+        } catch(IOException e) {
+            // e.g. the tool is not where it was configured to be
+            step.output = e.getMessage() + "\n";
+            step.failed = true;
+            step.duration = System.currentTimeMillis() - started;
+            return step;
+        }
+
+        // copy the output on another thread so that this one can be interrupted if the build is aborted
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        StreamCopyThread copier = new StreamCopyThread(description, process.getInputStream(), output);
+        copier.start();
+        try {
+            step.failed = process.waitFor()>0;
+            copier.join();
+        } catch(InterruptedException e) {
+            process.destroy();
+            throw e;
+        }
+
+        step.output = output.toString();
+        step.duration = System.currentTimeMillis() - started;
+        return step;
+    }
+
+    private Step delete(Result result, String description, File dir) {
+        Step step = new Step(description, "Could not delete " + dir);
+        long started = System.currentTimeMillis();
+        try {
+            if(dir.exists()) {
+                Util.deleteRecursive(dir);
+            }
+        } catch(IOException e) {
+            step.output = e.getMessage() + "\n";
+            step.failed = true;
+        }
+        step.duration = System.currentTimeMillis() - started;
+        result.steps.add(step);
+        return step;
+    }
+
+    /**
+     * What happened in each step of the pre-build phase
+     */
+    public static class Result implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Step> steps = new ArrayList<Step>();
+        private boolean aborted;
+
+        public List<Step> getSteps() {
+            return steps;
+        }
+
+        /**
+         * @return true if a step failed such that the build cannot go ahead
+         */
+        public boolean isAborted() {
+            return aborted;
+        }
+
+        public long getDuration() {
+            long duration = 0;
+            for(Step step : steps) {
+                duration += step.getDuration();
+            }
+            return duration;
+        }
+    }
+
+    public static class Step implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String description;
+        private final String failureMessage;
+        private String output = "";
+        private String tool;
+        private boolean failed;
+        private long duration;
+
+        Step(String description, String failureMessage) {
+            this.description = description;
+            this.failureMessage = failureMessage;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public String getFailureMessage() {
+            return failureMessage;
+        }
+
+        /**
+         * The combined stdout and stderr of the step's command, if it ran one
+         */
+        public String getOutput() {
+            return output;
+        }
+
+        /**
+         * The name of the tool the step launched, or null if it didn't launch one
+         */
+        public String getTool() {
+            return tool;
+        }
+
+        public boolean isFailed() {
+            return failed;
+        }
+
+        /**
+         * How long the step took on the node, in milliseconds
+         */
+        public long getDuration() {
+            return duration;
+        }
+    }
+}
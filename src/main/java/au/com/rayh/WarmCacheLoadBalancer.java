@@ -0,0 +1,151 @@
+package au.com.rayh;
+
+import hudson.model.Hudson;
+import hudson.model.Label;
+import hudson.model.LoadBalancer;
+import hudson.model.Node;
+import hudson.model.Project;
+import hudson.model.Queue.ApplicableJobOfferList;
+import hudson.model.Queue.JobOffer;
+import hudson.model.Queue.Task;
+import hudson.tasks.Builder;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Prefers free executors that have warm build outputs for the XCode build steps of a job.  Everything else, including
+ * jobs without XCode build steps and XCode jobs with nothing warm free, is left to the load balancer this one replaced.
+ *
+ * @author ray
+ */
+public class WarmCacheLoadBalancer extends LoadBalancer {
+    private static final Logger LOGGER = Logger.getLogger(WarmCacheLoadBalancer.class.getName());
+
+    private final LoadBalancer previous;
+
+    public WarmCacheLoadBalancer(LoadBalancer previous) {
+        this.previous = previous;
+    }
+
+    /**
+     * The load balancer that was installed before this one, which makes all the decisions this one doesn't
+     */
+    public LoadBalancer getPrevious() {
+        return previous;
+    }
+
+    /**
+     * A free executor as far as choosing between them is concerned
+     */
+    static class Slot {
+        final String nodeName;
+        final int executor;
+        final boolean allowed;
+
+        Slot(String nodeName, int executor, boolean allowed) {
+            this.nodeName = nodeName;
+            this.executor = executor;
+            this.allowed = allowed;
+        }
+    }
+
+    @Override
+    protected JobOffer choose(Task task, ApplicableJobOfferList applicable) {
+        List<String> fingerprints = fingerprints(task);
+        if(!fingerprints.isEmpty()) {
+            XCodeBuilder.DescriptorImpl descriptor = (XCodeBuilder.DescriptorImpl)Hudson.getInstance().getDescriptor(XCodeBuilder.class);
+            Label label = task.getAssignedLabel();
+
+            List<JobOffer> offers = new ArrayList<JobOffer>();
+            List<Slot> slots = new ArrayList<Slot>();
+            for(JobOffer offer : applicable) {
+                Node node = offer.getNode();
+                offers.add(offer);
+                slots.add(new Slot(node.getNodeName(), offer.executor.getNumber(), canTake(label, node)));
+            }
+
+            int chosen = select(slots, descriptor.warmCacheRegistry().rank(fingerprints));
+            if(chosen>=0) {
+                return offers.get(chosen);
+            }
+        }
+        return chooseWithPrevious(task, applicable);
+    }
+
+    /**
+     * Picks the slot at the best ranked warm location: the exact executor if executors are isolated, otherwise any
+     * executor of the node.  Failing that, any executor of a node where an isolated executor is warm, since the node's
+     * shared precompiled headers will still be warm.
+     *
+     * @param ranked warm locations, best first, see {@link WarmCacheRegistry#rank}
+     * @return the index of the chosen slot, or -1 if none is warm
+     */
+    static int select(List<Slot> slots, List<String> ranked) {
+        for(String location : ranked) {
+            for(int i = 0; i < slots.size(); i++) {
+                Slot slot = slots.get(i);
+                if(slot.allowed && (location.equals(slot.nodeName) || location.equals(WarmCacheRegistry.location(slot.nodeName, slot.executor)))) {
+                    return i;
+                }
+            }
+        }
+        for(String location : ranked) {
+            for(int i = 0; i < slots.size(); i++) {
+                Slot slot = slots.get(i);
+                if(slot.allowed && WarmCacheRegistry.nodeName(location).equals(slot.nodeName)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * {@link LoadBalancer#choose} is protected, so it can only be called on the previous load balancer reflectively
+     */
+    private JobOffer chooseWithPrevious(Task task, ApplicableJobOfferList applicable) {
+        try {
+            Method choose = LoadBalancer.class.getDeclaredMethod("choose", Task.class, ApplicableJobOfferList.class);
+            choose.setAccessible(true);
+            return (JobOffer)choose.invoke(previous, task, applicable);
+        } catch(InvocationTargetException e) {
+            if(e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch(Exception e) {
+            LOGGER.log(Level.WARNING, "Could not delegate to " + previous.getClass().getName() + ", picking the first free executor", e);
+            Label label = task.getAssignedLabel();
+            for(JobOffer offer : applicable) {
+                if(canTake(label, offer.getNode())) {
+                    return offer;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Tied jobs may only run on nodes with their label, and untied jobs may not run on nodes reserved for tied jobs
+     */
+    private boolean canTake(Label label, Node node) {
+        return label==null ? node.getMode()==Node.Mode.NORMAL : label.contains(node);
+    }
+
+    private List<String> fingerprints(Task task) {
+        List<String> fingerprints = new ArrayList<String>();
+        if(task instanceof Project) {
+            Project<?,?> project = (Project<?,?>)task;
+            for(Builder builder : project.getBuilders()) {
+                if(builder instanceof XCodeBuilder) {
+                    fingerprints.add(WarmCacheRegistry.fingerprint(project.getFullName(), (XCodeBuilder)builder));
+                }
+            }
+        }
+        return fingerprints;
+    }
+}
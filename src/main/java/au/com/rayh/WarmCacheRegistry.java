@@ -0,0 +1,144 @@
+package au.com.rayh;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers which nodes have warm build outputs (DerivedData, intermediates, precompiled headers) for which
+ * project/configuration fingerprints, so that builds can be steered towards a node that will not have to build cold.
+ *
+ * @author ray
+ */
+public class WarmCacheRegistry {
+    /**
+     * How long build outputs are assumed to stay warm on a node after a build
+     */
+    static final long WARM_PERIOD = 14L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Location (see {@link #location(String, int)}) to fingerprint to the most recent build with that fingerprint there
+     */
+    private final Map<String, Map<String, WarmBuild>> nodes = new HashMap<String, Map<String, WarmBuild>>();
+
+    public static class WarmBuild {
+        private final long timestamp;
+        private final long duration;
+
+        public WarmBuild(long timestamp, long duration) {
+            this.timestamp = timestamp;
+            this.duration = duration;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public long getDuration() {
+            return duration;
+        }
+    }
+
+    /**
+     * The fingerprint of the outputs of an XCode build step in a job
+     */
+    public static String fingerprint(String jobName, XCodeBuilder builder) {
+        return jobName + "|" + builder.getXcodeProjectPath() + "|" + builder.getXcodeProjectFile() + "|"
+                + builder.getTarget() + "|" + builder.getSdk() + "|" + builder.getConfiguration();
+    }
+
+    /**
+     * Where warm build outputs live: the whole node, or a single executor of it when executors are isolated.
+     *
+     * @param nodeName the node name, which is empty for the master
+     * @param executor the executor number, or -1 if the outputs are shared by all executors of the node
+     */
+    public static String location(String nodeName, int executor) {
+        return executor<0 ? nodeName : nodeName + "#" + executor;
+    }
+
+    /**
+     * @return the name of the node of a location
+     */
+    public static String nodeName(String location) {
+        int separator = location.lastIndexOf('#');
+        return separator<0 ? location : location.substring(0, separator);
+    }
+
+    /**
+     * Records that a build with the given fingerprint completed at a location, leaving warm outputs behind.
+     *
+     * @param location where the outputs were left, see {@link #location(String, int)}
+     * @param duration how long the build took, in milliseconds
+     */
+    public void record(String location, String fingerprint, long duration) {
+        record(location, fingerprint, duration, System.currentTimeMillis());
+    }
+
+    synchronized void record(String location, String fingerprint, long duration, long now) {
+        Map<String, WarmBuild> builds = nodes.get(location);
+        if(builds==null) {
+            builds = new HashMap<String, WarmBuild>();
+            nodes.put(location, builds);
+        }
+        builds.put(fingerprint, new WarmBuild(now, duration));
+        expire(now);
+    }
+
+    /**
+     * @return the locations with warm outputs for any of the fingerprints, best first: those warm for the most fingerprints,
+     * then those that built them fastest
+     */
+    public List<String> rank(Collection<String> fingerprints) {
+        return rank(fingerprints, System.currentTimeMillis());
+    }
+
+    synchronized List<String> rank(Collection<String> fingerprints, long now) {
+        final Map<String, Integer> warmCounts = new HashMap<String, Integer>();
+        final Map<String, Long> durations = new HashMap<String, Long>();
+        for(Map.Entry<String, Map<String, WarmBuild>> node : nodes.entrySet()) {
+            int warm = 0;
+            long duration = 0;
+            for(String fingerprint : fingerprints) {
+                WarmBuild build = node.getValue().get(fingerprint);
+                if(build!=null && now - build.getTimestamp() < WARM_PERIOD) {
+                    warm++;
+                    duration += build.getDuration();
+                }
+            }
+            if(warm>0) {
+                warmCounts.put(node.getKey(), warm);
+                durations.put(node.getKey(), duration);
+            }
+        }
+
+        List<String> ranked = new ArrayList<String>(warmCounts.keySet());
+        Collections.sort(ranked, new Comparator<String>() {
+            public int compare(String a, String b) {
+                int byWarmth = warmCounts.get(b).compareTo(warmCounts.get(a));
+                if(byWarmth!=0) return byWarmth;
+                return durations.get(a).compareTo(durations.get(b));
+            }
+        });
+        return ranked;
+    }
+
+    private void expire(long now) {
+        for(Iterator<Map<String, WarmBuild>> i = nodes.values().iterator(); i.hasNext();) {
+            Map<String, WarmBuild> builds = i.next();
+            for(Iterator<WarmBuild> j = builds.values().iterator(); j.hasNext();) {
+                if(now - j.next().getTimestamp() >= WARM_PERIOD) {
+                    j.remove();
+                }
+            }
+            if(builds.isEmpty()) {
+                i.remove();
+            }
+        }
+    }
+}
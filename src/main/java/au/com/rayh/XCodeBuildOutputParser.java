@@ -10,13 +10,18 @@ import au.com.rayh.report.TestFailure;
 import au.com.rayh.report.TestSuite;
 import hudson.FilePath;
 import hudson.model.TaskListener;
+import java.io.BufferedOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.InetAddress;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.xml.bind.JAXBContext;
@@ -35,8 +40,15 @@ public class XCodeBuildOutputParser {
     private static Pattern END_TESTCASE = Pattern.compile("Test Case '-\\[\\S+\\s+(\\S+)\\]' passed \\((.*) seconds\\).");
     private static Pattern ERROR_TESTCASE = Pattern.compile("(.*): error: -\\[(\\S+) (\\S+)\\] : (.*)");
     private static Pattern FAILED_TESTCASE = Pattern.compile("Test Case '-\\[\\S+ (\\S+)\\]' failed \\((\\S+) seconds\\).");
+    private static Pattern COMPILER_DIAGNOSTIC = Pattern.compile("(?:(.+?): )?(?:fatal )?(error|warning): (.*)");
+    private static Pattern LINKER_ERROR = Pattern.compile("ld: (.*)|(Undefined symbols.*):");
     private static Pattern FAILED_WITH_EXIT_CODE = Pattern.compile("failed with exit code (\\d+)");
 
+    /**
+     * Longer lines are still logged in full but only this much of them is parsed
+     */
+    static final int MAX_LINE_LENGTH = 1024 * 1024;
+
     FilePath testReportsDir;
     OutputStream captureOutputStream;
     TaskListener buildListener;
@@ -45,16 +57,38 @@ public class XCodeBuildOutputParser {
     TestSuite currentTestSuite;
     TestCase currentTestCase;
 
-    public XCodeBuildOutputParser(FilePath workspace, TaskListener buildListener) throws IOException, InterruptedException {
+    long logOffset;
+    long currentLineOffset;
+    List<Diagnostic> diagnostics = new ArrayList<Diagnostic>();
+
+    boolean writeTestReports = true;
+    boolean collectTestSuites;
+    List<TestSuite> testSuites = new ArrayList<TestSuite>();
+
+    XCodeMetrics metrics = new XCodeMetrics();
+    XCodeTestProgressAction progress;
+
+    long failureBudgetPerCase = 64 * 1024;
+    long failureBudgetPerSuite = 1024 * 1024;
+    long failureBudgetPerBuild = 16 * 1024 * 1024;
+    long currentTestCaseFailureSize;
+    long currentTestSuiteFailureSize;
+    long collectedFailureSize;
+    int truncatedTestFailures;
+    FilePath spillFile;
+    Writer spillWriter;
+
+    public XCodeBuildOutputParser(FilePath testReportsDir, TaskListener buildListener) throws IOException, InterruptedException {
         this.buildListener = buildListener;
         this.captureOutputStream = new LineBasedFilterOutputStream();
 
-        testReportsDir = workspace.child("test-reports");
-        testReportsDir.mkdirs();
+        this.testReportsDir = testReportsDir;
     }
 
     public class LineBasedFilterOutputStream extends FilterOutputStream {
         StringBuilder buffer = new StringBuilder();
+        long position = 0;
+        long lineStart = 0;
 
         public LineBasedFilterOutputStream() {
             super(buildListener.getLogger());
@@ -63,15 +97,20 @@ public class XCodeBuildOutputParser {
         @Override
         public void write(int b) throws IOException {
             super.write(b);
+            position++;
             if((char)b == '\n') {
+                // the buffer stops growing at MAX_LINE_LENGTH, so count the bytes actually written
+                metrics.lineParsed(position - lineStart);
+                lineStart = position;
                 try {
                     handleLine(buffer.toString());
                     buffer = new StringBuilder();
+                    currentLineOffset = logOffset + position;
                 } catch(Exception e) {  // Very fugly
                     buildListener.fatalError(e.getMessage(), e);
                     throw new IOException(e);
                 }
-            } else {
+            } else if(buffer.length() < MAX_LINE_LENGTH) {
                 buffer.append((char)b);
             }
         }
@@ -99,17 +138,74 @@ public class XCodeBuildOutputParser {
     }
 
     private void writeTestReport() throws IOException, InterruptedException, JAXBException {
+        long started = System.currentTimeMillis();
+        testReportsDir.mkdirs();
         OutputStream testReportOutputStream = testReportsDir.child("TEST-" + currentTestSuite.getName() + ".xml").write();
-        JAXBContext jaxbContext = JAXBContext.newInstance(TestSuite.class);
-        Marshaller marshaller = jaxbContext.createMarshaller();
-        marshaller.marshal(currentTestSuite, testReportOutputStream);
+        try {
+            JAXBContext jaxbContext = JAXBContext.newInstance(TestSuite.class);
+            Marshaller marshaller = jaxbContext.createMarshaller();
+            marshaller.marshal(currentTestSuite, testReportOutputStream);
+        } finally {
+            testReportOutputStream.close();
+        }
+        metrics.reportWritten(System.currentTimeMillis() - started);
+
+    }
 
+    /**
+     * Keeps the failure in memory if it fits in the budgets of the current test case and suite, and, if finished suites
+     * are being collected, the budget of the whole build.  Otherwise writes it to a file next to the test reports and
+     * just counts it.
+     *
+     * @return true if the failure was kept in memory
+     */
+    private boolean addFailure(TestFailure failure) throws IOException, InterruptedException {
+        long size = failure.getMessage().length() + failure.getLocation().length();
+        if(currentTestCaseFailureSize + size <= failureBudgetPerCase && currentTestSuiteFailureSize + size <= failureBudgetPerSuite
+                && (!collectTestSuites || collectedFailureSize + size <= failureBudgetPerBuild)) {
+            currentTestCase.getFailures().add(failure);
+            currentTestCaseFailureSize += size;
+            currentTestSuiteFailureSize += size;
+            collectedFailureSize += size;
+            return true;
+        }
+
+        if(spillWriter==null) {
+            testReportsDir.mkdirs();
+            spillFile = testReportsDir.child("TEST-" + currentTestSuite.getName() + "-failures.txt");
+            spillWriter = new OutputStreamWriter(new BufferedOutputStream(spillFile.write(), 64 * 1024), "UTF-8");
+        }
+        spillWriter.write(currentTestCase.getName() + ": " + failure.getLocation() + ": " + failure.getMessage() + "\n");
+        currentTestCase.addTruncatedFailure();
+        return false;
+    }
+
+    /**
+     * Adds a failure to the test case summarising any failures that did not fit in memory
+     */
+    private void summariseTruncatedFailures() {
+        if(currentTestCase.getTruncatedFailures()>0) {
+            currentTestCase.getFailures().add(new TestFailure(currentTestCase.getTruncatedFailures() + " further failures were truncated, see " + spillFile.getName(), spillFile.getRemote()));
+        }
+    }
+
+    private void closeSpillFile() throws IOException {
+        if(spillWriter!=null) {
+            spillWriter.close();
+            spillWriter = null;
+            spillFile = null;
+        }
     }
 
     protected void handleLine(String line) throws ParseException, IOException, InterruptedException, JAXBException {
         Matcher m = START_SUITE.matcher(line);
         if(m.matches()) {
+            closeSpillFile();
+            currentTestSuiteFailureSize = 0;
             currentTestSuite = new TestSuite(InetAddress.getLocalHost().getHostName(), m.group(1), dateFormat.parse(m.group(2)));
+            if(progress!=null) {
+                progress.suiteStarted(currentTestSuite.getName());
+            }
             return;
         }
 
@@ -118,7 +214,16 @@ public class XCodeBuildOutputParser {
             if(currentTestSuite==null) return; // if there is no current suite, do nothing
 
             currentTestSuite.setEndTime(dateFormat.parse(m.group(2)));
-            writeTestReport();
+            if(writeTestReports) {
+                writeTestReport();
+            }
+            if(collectTestSuites) {
+                testSuites.add(currentTestSuite);
+            }
+            if(progress!=null) {
+                progress.suiteFinished(currentTestSuite.getName(), currentTestSuite.getTests(), currentTestSuite.getTime());
+            }
+            closeSpillFile();
 
             currentTestSuite = null;
             return;
@@ -127,6 +232,7 @@ public class XCodeBuildOutputParser {
         m = START_TESTCASE.matcher(line);
         if(m.matches()) {
             currentTestCase = new TestCase(currentTestSuite.getName(), m.group(1));
+            currentTestCaseFailureSize = 0;
             return;
         }
 
@@ -136,8 +242,12 @@ public class XCodeBuildOutputParser {
             requireTestCase(m.group(1));
 
             currentTestCase.setTime(Float.valueOf(m.group(2)));
+            summariseTruncatedFailures();
             currentTestSuite.getTestCases().add(currentTestCase);
             currentTestSuite.addTest();
+            if(progress!=null) {
+                progress.testPassed();
+            }
             currentTestCase = null;
             return;
         }
@@ -153,8 +263,12 @@ public class XCodeBuildOutputParser {
             requireTestSuite(testSuite);
             requireTestCase(testCase);
 
-            TestFailure failure = new TestFailure(errorMessage, errorLocation);
-            currentTestCase.getFailures().add(failure);
+            // failures over budget are only in the spill file, so they are only counted as diagnostics too
+            if(addFailure(new TestFailure(errorMessage, errorLocation))) {
+                diagnostics.add(new Diagnostic(Diagnostic.Type.TEST_FAILURE, errorLocation, errorMessage, currentLineOffset));
+            } else {
+                truncatedTestFailures++;
+            }
             return;
         } 
         
@@ -164,12 +278,32 @@ public class XCodeBuildOutputParser {
             requireTestCase(m.group(1));
             currentTestSuite.addTest();
             currentTestSuite.addFailure();
+            currentTestCase.setFailed(true);
             currentTestCase.setTime(Float.valueOf(m.group(2)));
+            summariseTruncatedFailures();
             currentTestSuite.getTestCases().add(currentTestCase);
+            if(progress!=null) {
+                progress.testFailed(currentTestSuite.getName(), currentTestCase.getName(), currentTestCase.getFailures());
+            }
             currentTestCase = null;
             return;
         }
 
+        // file:line: error: ..., or with a tool (ld, clang, ...) in place of the file, or with no location at all
+        m = COMPILER_DIAGNOSTIC.matcher(line);
+        if(m.matches()) {
+            Diagnostic.Type type = m.group(2).equals("warning") ? Diagnostic.Type.WARNING : Diagnostic.Type.ERROR;
+            diagnostics.add(new Diagnostic(type, m.group(1)==null ? "" : m.group(1), m.group(3), currentLineOffset));
+            return;
+        }
+
+        // the linker doesn't always say error, e.g. "ld: library not found for -lfoo"
+        m = LINKER_ERROR.matcher(line);
+        if(m.matches()) {
+            diagnostics.add(new Diagnostic(Diagnostic.Type.ERROR, "ld", m.group(1)==null ? m.group(2) : m.group(1), currentLineOffset));
+            return;
+        }
+
         m = FAILED_WITH_EXIT_CODE.matcher(line);
         if(m.matches()) {
             exitCode = Integer.valueOf(m.group(1));
@@ -181,6 +315,13 @@ public class XCodeBuildOutputParser {
         }
     }
 
+    /**
+     * Releases anything still held open after xcodebuild has finished, e.g. because it died mid-suite
+     */
+    public void close() throws IOException {
+        closeSpillFile();
+    }
+
     public OutputStream getOutputStream() {
         return captureOutputStream;
     }
@@ -188,4 +329,67 @@ public class XCodeBuildOutputParser {
     public int getExitCode() {
         return exitCode;
     }
+
+    /**
+     * Sets where in the console log the parsed output starts, so that diagnostics can record their offset in the log
+     */
+    public void setLogOffset(long logOffset) {
+        this.logOffset = logOffset;
+        this.currentLineOffset = logOffset;
+    }
+
+    public List<Diagnostic> getDiagnostics() {
+        return diagnostics;
+    }
+
+    /**
+     * The number of test failures that were over the failure budgets, and so are in neither the test cases nor
+     * {@link #getDiagnostics()}
+     */
+    public int getTruncatedTestFailures() {
+        return truncatedTestFailures;
+    }
+
+    /**
+     * Whether to write a JUnit XML report to the test reports directory as each suite finishes
+     */
+    public void setWriteTestReports(boolean writeTestReports) {
+        this.writeTestReports = writeTestReports;
+    }
+
+    /**
+     * Whether to keep finished suites in memory so that they can be published directly with the build
+     */
+    public void setCollectTestSuites(boolean collectTestSuites) {
+        this.collectTestSuites = collectTestSuites;
+    }
+
+    public List<TestSuite> getTestSuites() {
+        return testSuites;
+    }
+
+    /**
+     * Sets where to count the lines and bytes parsed and the time spent writing reports
+     */
+    public void setMetrics(XCodeMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets where to publish test results as they arrive, so they can be followed while the build runs
+     */
+    public void setProgress(XCodeTestProgressAction progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Sets how many characters of failure messages and locations to keep in memory for each test case, each suite and,
+     * since collected suites are kept until the build ends, all the collected suites together.
+     * Failures beyond these are written to a TEST-*-failures.txt file in the test reports directory instead.
+     */
+    public void setFailureBudgets(long failureBudgetPerCase, long failureBudgetPerSuite, long failureBudgetPerBuild) {
+        this.failureBudgetPerCase = failureBudgetPerCase;
+        this.failureBudgetPerSuite = failureBudgetPerSuite;
+        this.failureBudgetPerBuild = failureBudgetPerBuild;
+    }
 }
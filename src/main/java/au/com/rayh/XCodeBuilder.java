@@ -5,6 +5,11 @@ import hudson.Launcher;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.util.FormValidation;
+import hudson.model.Executor;
+import hudson.model.Hudson;
+import hudson.model.LoadBalancer;
+import hudson.model.Queue;
+import hudson.model.Result;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.model.AbstractProject;
@@ -13,12 +18,15 @@ import hudson.tasks.BuildStepDescriptor;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.QueryParameter;
 
 import javax.servlet.ServletException;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.logging.Logger;
 import org.apache.commons.lang.StringUtils;
 
 /**
@@ -28,6 +36,9 @@ public class XCodeBuilder extends Builder {
     private Boolean buildIpa;
     private Boolean cleanBeforeBuild;
     private Boolean updateBuildNumber;
+    private Boolean isolateExecutors;
+    private Boolean publishTestResults;
+    private Boolean skipTestReports;
     private String configuration;
     private String overrideMarketingNumber;
     private String target;
@@ -39,7 +50,7 @@ public class XCodeBuilder extends Builder {
 
     // Fields in config.jelly must match the parameter names in the "DataBoundConstructor"
     @DataBoundConstructor
-    public XCodeBuilder(Boolean buildIpa, Boolean cleanBeforeBuild, Boolean updateBuildNumber, String configuration, String target, String sdk, String xcodeProjectPath, String xcodeProjectFile, String embeddedProfileFile, String versionNumberPattern, String overrideMarketingNumber) {
+    public XCodeBuilder(Boolean buildIpa, Boolean cleanBeforeBuild, Boolean updateBuildNumber, String configuration, String target, String sdk, String xcodeProjectPath, String xcodeProjectFile, String embeddedProfileFile, String versionNumberPattern, String overrideMarketingNumber, Boolean isolateExecutors, Boolean publishTestResults, Boolean skipTestReports) {
         this.buildIpa = buildIpa;
         this.sdk = sdk;
         this.target = target;
@@ -51,6 +62,9 @@ public class XCodeBuilder extends Builder {
         this.xcodeProjectFile = xcodeProjectFile;
         this.embeddedProfileFile = embeddedProfileFile;
         this.versionNumberPattern = versionNumberPattern;
+        this.isolateExecutors = isolateExecutors;
+        this.publishTestResults = publishTestResults;
+        this.skipTestReports = skipTestReports;
     }
 
     public String getVersionNumberPattern() {
@@ -80,6 +94,18 @@ public class XCodeBuilder extends Builder {
         return updateBuildNumber;
     }
 
+    public Boolean getIsolateExecutors() {
+        return isolateExecutors;
+    }
+
+    public Boolean getPublishTestResults() {
+        return publishTestResults;
+    }
+
+    public Boolean getSkipTestReports() {
+        return skipTestReports;
+    }
+
     public String getOverrideMarketingNumber() {
         return overrideMarketingNumber;
     }
@@ -98,27 +124,34 @@ public class XCodeBuilder extends Builder {
 
     @Override
     public boolean perform(AbstractBuild build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+        XCodeMetrics metrics = getDescriptor().metrics();
         EnvVars envs = build.getEnvironment(listener);
         FilePath projectRoot = build.getProject().getWorkspace();
 
-        // check that the configured tools exist
-        if(!new FilePath(projectRoot.getChannel(), getDescriptor().xcodebuildPath()).exists()) {
-            listener.fatalError("Cannot find xcodebuild with the configured path {0}", getDescriptor().xcodebuildPath());
-        }
-        if(!new FilePath(projectRoot.getChannel(), getDescriptor().agvtoolPath()).exists()) {
-            listener.fatalError("Cannot find agvtool with the configured path {0}", getDescriptor().agvtoolPath());
-        }
-
         // Set the working directory
         if(!StringUtils.isEmpty(xcodeProjectPath)) {
             projectRoot = projectRoot.child(xcodeProjectPath);
         }
         listener.getLogger().println("Working directory is " + projectRoot);
-        FilePath buildDirectory = projectRoot.child("build").child(configuration + "-iphoneos");
 
-        // XCode Version
-        int returnCode = launcher.launch().envs(envs).cmds(getDescriptor().xcodebuildPath(), "-version").stdout(listener).pwd(projectRoot).join();
-        if(returnCode>0) return false;
+        // Give each executor its own build products and reports so that concurrent builds on the same node don't clobber each other
+        FilePath symRoot = projectRoot.child("build");
+        FilePath testReportsDirectory = projectRoot.child("test-reports");
+        int executorNumber = -1;
+        if(Boolean.TRUE.equals(isolateExecutors)) {
+            Executor executor = Executor.currentExecutor();
+            if(executor==null) {
+                // falling back to any particular executor's directories would share them with that executor's builds
+                listener.fatalError("Cannot isolate the build: it is not running on an executor");
+                return false;
+            }
+            executorNumber = executor.getNumber();
+            String executorName = "executor-" + executorNumber;
+            symRoot = symRoot.child(executorName);
+            testReportsDirectory = testReportsDirectory.child(executorName);
+            listener.getLogger().println("Isolating build products in " + symRoot + " and test reports in " + testReportsDirectory);
+        }
+        FilePath buildDirectory = symRoot.child(configuration + "-iphoneos");
 
         // Unlock keychain
 //        if(!StringUtils.isEmpty(keychainPassword)) {
@@ -131,55 +164,46 @@ public class XCodeBuilder extends Builder {
         if(!StringUtils.isEmpty(getVersionNumberPattern())) {
              versionNumber = getVersionNumberPattern().replaceAll("\\{BUILD_NUMBER\\}", artifactVersion);
         }
-        
+
+        // Check the tools, stamp the version numbers and clean up in a single call to the node
+        PreBuildCallable preBuild = new PreBuildCallable(getDescriptor().xcodebuildPath(), getDescriptor().agvtoolPath(), envs);
         if(updateBuildNumber) {
-            listener.getLogger().println("Updating version number (CFBundleVersion) to " + versionNumber);
-            //ByteArrayOutputStream output = new ByteArrayOutputStream();
-            //returnCode = launcher.launch().envs(envs).cmds("agvtool", "mvers", "-terse1").stdout(output).pwd(projectRoot).join();
-            //if(returnCode>0) {
-
-            //} else {
-            //    String marketingVersionNumber = output.toString().trim();
-            //    artifactVersion = marketingVersionNumber + "." + build.getNumber();
-            //    listener.getLogger().println("CFBundleShortVersionString is " + marketingVersionNumber + " so new CFBundleVersion will be " + artifactVersion);
-            //}
-
-            returnCode = launcher.launch().envs(envs).cmds(getDescriptor().agvtoolPath(), "new-version", "-all", versionNumber ).stdout(listener).pwd(projectRoot).join();
-            if(returnCode>0) {
-                listener.fatalError("Could not set the CFBundleVersion to " + versionNumber);
-            }
-//        } else {
-//            listener.getLogger().println("Fetching marketing version number (CFBundleShortVersionString)");
-//            ByteArrayOutputStream output = new ByteArrayOutputStream();
-//            returnCode = launcher.launch().envs(envs).cmds("agvtool", "vers", "-terse").stdout(output).pwd(projectRoot).join();
-//
-//            // only use this version number if we found it
-//            if(returnCode==0)
-//                artifactVersion = output.toString().trim();
+            preBuild.setVersionNumber(versionNumber);
         }
-        
         if( false == StringUtils.isEmpty(overrideMarketingNumber) ) {
-            listener.getLogger().println("Updating marketing version to " + overrideMarketingNumber);
-            
-            returnCode = launcher.launch().envs(envs).cmds(getDescriptor().agvtoolPath(), "new-marketing-version", overrideMarketingNumber ).stdout(listener).pwd(projectRoot).join();
-            if(returnCode>0) {
-                listener.fatalError("Could not set marketing version to " + overrideMarketingNumber);
-            }
+            preBuild.setMarketingNumber(overrideMarketingNumber);
         }
-
-        // Clean build directories
         if(cleanBeforeBuild) {
-            listener.getLogger().println("Cleaning build directory (" + projectRoot.child("build") + ")");
-            buildDirectory.deleteRecursive();
+            preBuild.setBuildDirectory(buildDirectory.getRemote());
         }
-        
-        // remove test-reports and *.ipa
-        listener.getLogger().println("Cleaning up test-reports");
-        projectRoot.child("test-reports").deleteRecursive();
+        preBuild.setTestReportsDirectory(testReportsDirectory.getRemote());
+
+        long preBuildStarted = System.currentTimeMillis();
+        PreBuildCallable.Result preBuildResult = projectRoot.act(preBuild);
+        metrics.phase("prebuild", System.currentTimeMillis() - preBuildStarted);
+        for(PreBuildCallable.Step step : preBuildResult.getSteps()) {
+            if(step.getTool()!=null) {
+                metrics.toolLaunched(step.getTool());
+            }
+            listener.getLogger().println(step.getDescription() + " (" + step.getDuration() + "ms)");
+            listener.getLogger().print(step.getOutput());
+            if(step.isFailed()) {
+                listener.fatalError(step.getFailureMessage());
+            }
+        }
+        listener.getLogger().println("Pre-build steps took " + preBuildResult.getDuration() + "ms on the node");
+        if(preBuildResult.isAborted()) return false;
 
         // Build
         StringBuilder xcodeReport = new StringBuilder("Going to invoke xcodebuild: ");
-        XCodeBuildOutputParser reportGenerator = new XCodeBuildOutputParser(projectRoot, listener);
+        XCodeBuildOutputParser reportGenerator = new XCodeBuildOutputParser(testReportsDirectory, listener);
+        reportGenerator.setWriteTestReports(!Boolean.TRUE.equals(skipTestReports));
+        reportGenerator.setCollectTestSuites(Boolean.TRUE.equals(publishTestResults));
+        reportGenerator.setMetrics(metrics);
+        reportGenerator.setFailureBudgets(getDescriptor().failureBudgetPerCase() * 1024, getDescriptor().failureBudgetPerSuite() * 1024, getDescriptor().failureBudgetPerBuild() * 1024);
+        XCodeTestProgressAction progress = new XCodeTestProgressAction(build, previousProgress(build));
+        reportGenerator.setProgress(progress);
+        build.addAction(progress);
         List<String> commandLine = Lists.newArrayList(getDescriptor().xcodebuildPath());
         if(StringUtils.isEmpty(target)) {
             commandLine.add("-alltargets");
@@ -210,6 +234,19 @@ public class XCodeBuilder extends Builder {
         commandLine.add(configuration);
         xcodeReport.append(", configuration: ").append(configuration);
 
+        if(Boolean.TRUE.equals(isolateExecutors)) {
+            // SYMROOT/OBJROOT take the place of the per-user DerivedData folder for products and intermediates
+            commandLine.add("SYMROOT=" + symRoot.getRemote());
+            commandLine.add("OBJROOT=" + symRoot.child("obj").getRemote());
+            xcodeReport.append(", symroot: ").append(symRoot.getRemote());
+        }
+
+        if(!StringUtils.isEmpty(getDescriptor().sharedPrecompsPath())) {
+            // shared read-write, just as XCode's default per-user location is shared by every build of the user
+            commandLine.add("SHARED_PRECOMPS_DIR=" + getDescriptor().sharedPrecompsPath());
+            xcodeReport.append(", shared precomps: ").append(getDescriptor().sharedPrecompsPath());
+        }
+
 //        if (cleanBeforeBuild) {
 //            commandLine.add("clean");
 //            xcodeReport.append(", clean: YES");
@@ -219,10 +256,40 @@ public class XCodeBuilder extends Builder {
         commandLine.add("build");
         
         listener.getLogger().println(xcodeReport.toString());
-        returnCode = launcher.launch().envs(envs).cmds(commandLine).stdout(reportGenerator.getOutputStream()).pwd(projectRoot).join();
+        listener.getLogger().flush();
+        reportGenerator.setLogOffset(build.getLogFile().length());
+        long buildStarted = System.currentTimeMillis();
+        int returnCode;
+        try {
+            returnCode = launcher.launch().envs(envs).cmds(commandLine).stdout(reportGenerator.getOutputStream()).pwd(projectRoot).join();
+        } finally {
+            progress.finished();
+            reportGenerator.close();
+        }
+        long buildDuration = System.currentTimeMillis() - buildStarted;
+        if(!progress.hasResults()) {
+            build.getActions().remove(progress);
+        }
+        metrics.toolLaunched("xcodebuild");
+        metrics.phase("xcodebuild", buildDuration);
+        if(!reportGenerator.getDiagnostics().isEmpty() || reportGenerator.getTruncatedTestFailures()>0) {
+            build.addAction(new XCodeDiagnosticsAction(build, reportGenerator.getDiagnostics(), reportGenerator.getTruncatedTestFailures()));
+        }
+        if(!reportGenerator.getTestSuites().isEmpty()) {
+            XCodeTestResultAction testResultAction = new XCodeTestResultAction(build, reportGenerator.getTestSuites());
+            build.addAction(testResultAction);
+            if(testResultAction.getFailCount()>0) {
+                build.setResult(Result.UNSTABLE);
+            }
+        }
         if(reportGenerator.getExitCode()!=0) return false;
         if(returnCode>0) return false;
 
+        // Remember that this node (or just this executor, if isolated) now has warm build outputs for this job
+        if(getDescriptor().preferWarmNodes()) {
+            getDescriptor().recordWarmBuild(WarmCacheRegistry.location(build.getBuiltOnStr(), executorNumber), WarmCacheRegistry.fingerprint(build.getProject().getFullName(), this), buildDuration);
+        }
+
 
         // Package IPA
         if(buildIpa) {
@@ -231,13 +298,28 @@ public class XCodeBuilder extends Builder {
                 path.delete();
             }
 
+            long packagingStarted = System.currentTimeMillis();
             listener.getLogger().println("Packaging IPA");
             List<FilePath> apps = buildDirectory.list(new AppFileFilter());
+            ArtifactCache artifactCache = getDescriptor().artifactCache();
 
             for(FilePath app : apps) {
                 String baseName = app.getBaseName() + "-" + configuration + "-" + build.getProject().getName() + "-" + versionNumber;
                 FilePath ipaLocation = buildDirectory.child(baseName + ".ipa");
+                FilePath dsymZipLocation = buildDirectory.child(baseName + "-dSYM.zip");
+
+                // Reuse the artifacts packaged by any job that built the same app with the same inputs
+                String cacheKey = null;
+                if(artifactCache!=null) {
+                    FilePath embeddedProfile = StringUtils.isEmpty(embeddedProfileFile) ? null : projectRoot.child(embeddedProfileFile);
+                    cacheKey = artifactCache.fingerprint(app, embeddedProfile, StringUtils.isEmpty(sdk) ? "iphoneos" : sdk);
+                    if(artifactCache.restore(cacheKey, ipaLocation, dsymZipLocation)) {
+                        listener.getLogger().println("Restored " + app.getBaseName() + ".app => " + ipaLocation + " from the artifact cache (" + cacheKey + ")");
+                        continue;
+                    }
+                }
 
+                long appStarted = System.currentTimeMillis();
                 FilePath payload = buildDirectory.child("Payload");
                 payload.deleteRecursive();
                 payload.mkdirs();
@@ -260,29 +342,52 @@ public class XCodeBuilder extends Builder {
                 }
                 
                 returnCode = launcher.launch().envs(envs).stdout(listener).pwd(projectRoot).cmds(packageCommandLine).join();
+                metrics.toolLaunched("xcrun");
                 if(returnCode>0) {
                     listener.getLogger().println("Failed to build " + ipaLocation.getName());
                     continue;
                 }
 
                 // also zip up the symbols, if present
-                returnCode = launcher.launch().envs(envs).stdout(listener).pwd(buildDirectory).cmds("zip", "-r", "-T", "-y", baseName + "-dSYM.zip", app.getBaseName() + ".app.dSYM").join();
+                returnCode = launcher.launch().envs(envs).stdout(listener).pwd(buildDirectory).cmds("zip", "-r", "-T", "-y", dsymZipLocation.getName(), app.getBaseName() + ".app.dSYM").join();
+                metrics.toolLaunched("zip");
                 if(returnCode>0) {
-                    listener.getLogger().println("Failed to zip *.dSYM into " + baseName + "-dSYM.zip");
+                    listener.getLogger().println("Failed to zip *.dSYM into " + dsymZipLocation.getName());
                     continue;
                 }
 
+                if(artifactCache!=null) {
+                    artifactCache.store(cacheKey, ipaLocation, dsymZipLocation);
+                }
+
                 //listener.getLogger().println("Copying to " + app.getBaseName() + ".ipa");
                 //ipaLocation.copyTo(buildDirectory.child(app.getBaseName() + ".ipa"));
 
 
                 payload.deleteRecursive();
+                metrics.appPackaged(System.currentTimeMillis() - appStarted);
             }
+            metrics.phase("packaging", System.currentTimeMillis() - packagingStarted);
         }
 
         return true;
     }
 
+    /**
+     * The test progress of the last completed build that ran tests, skipping builds that are still running (whose
+     * progress is incomplete) and builds that ran no tests (which don't keep the action).
+     */
+    private XCodeTestProgressAction previousProgress(AbstractBuild build) {
+        for(AbstractBuild previous = build.getPreviousBuild(); previous!=null; previous = previous.getPreviousBuild()) {
+            if(previous.isBuilding()) continue;
+            XCodeTestProgressAction progress = (XCodeTestProgressAction)previous.getAction(XCodeTestProgressAction.class);
+            if(progress!=null) {
+                return progress;
+            }
+        }
+        return null;
+    }
+
     @Override
     public DescriptorImpl getDescriptor() {
         return (DescriptorImpl)super.getDescriptor();
@@ -290,8 +395,44 @@ public class XCodeBuilder extends Builder {
 
     @Extension
     public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
+        private static final Logger LOGGER = Logger.getLogger(DescriptorImpl.class.getName());
+
         private String xcodebuildPath = "/usr/bin/xcodebuild";
         private String agvtoolPath = "/usr/bin/agvtool";
+        private String sharedPrecompsPath;
+        private String artifactCachePath;
+        private long artifactCacheSize = 10240;
+        private long failureBudgetPerCase = 64;
+        private long failureBudgetPerSuite = 1024;
+        private long failureBudgetPerBuild = 16384;
+        private boolean preferWarmNodes;
+        private WarmCacheRegistry warmCacheRegistry = new WarmCacheRegistry();
+        private final transient XCodeMetrics metrics = new XCodeMetrics();
+
+        public DescriptorImpl() {
+            load();
+            updateLoadBalancer();
+        }
+
+        /**
+         * Installs or removes the {@link WarmCacheLoadBalancer} to match the global setting
+         */
+        private void updateLoadBalancer() {
+            Hudson hudson = Hudson.getInstance();
+            if(hudson==null) return;
+
+            Queue queue = hudson.getQueue();
+            LoadBalancer current = queue.getLoadBalancer();
+            if(preferWarmNodes && !(current instanceof WarmCacheLoadBalancer)) {
+                // the stock load balancers are all defined within LoadBalancer itself
+                if(!current.getClass().getName().startsWith(LoadBalancer.class.getName())) {
+                    LOGGER.warning("Installing the warm cache load balancer in front of " + current.getClass().getName() + ", which will only be consulted for jobs without warm nodes");
+                }
+                queue.setLoadBalancer(new WarmCacheLoadBalancer(current));
+            } else if(!preferWarmNodes && current instanceof WarmCacheLoadBalancer) {
+                queue.setLoadBalancer(((WarmCacheLoadBalancer)current).getPrevious());
+            }
+        }
 
         public FormValidation doCheckConfiguration(@QueryParameter String value) throws IOException, ServletException {
             if (StringUtils.isEmpty(value)) {
@@ -339,6 +480,14 @@ public class XCodeBuilder extends Builder {
 //            configuration = formData.getString("configuration");
             xcodebuildPath = formData.getString("xcodebuildPath");
             agvtoolPath = formData.getString("agvtoolPath");
+            sharedPrecompsPath = formData.getString("sharedPrecompsPath");
+            artifactCachePath = formData.getString("artifactCachePath");
+            artifactCacheSize = formData.optLong("artifactCacheSize", 10240);
+            failureBudgetPerCase = formData.optLong("failureBudgetPerCase", 64);
+            failureBudgetPerSuite = formData.optLong("failureBudgetPerSuite", 1024);
+            failureBudgetPerBuild = formData.optLong("failureBudgetPerBuild", 16384);
+            preferWarmNodes = formData.optBoolean("preferWarmNodes");
+            updateLoadBalancer();
             // ^Can also use req.bindJSON(this, formData);
             //  (easier when there are many fields; need set* methods for this, like setUseFrench)
             save();
@@ -353,6 +502,87 @@ public class XCodeBuilder extends Builder {
             return xcodebuildPath;
         }
 
+        public String sharedPrecompsPath() {
+            return sharedPrecompsPath;
+        }
+
+        public String artifactCachePath() {
+            return artifactCachePath;
+        }
+
+        /**
+         * The maximum size of the artifact cache in megabytes
+         */
+        public long artifactCacheSize() {
+            return artifactCacheSize;
+        }
+
+        /**
+         * The size in kilobytes of the test failures to keep in memory for each test case
+         */
+        public long failureBudgetPerCase() {
+            return failureBudgetPerCase;
+        }
+
+        /**
+         * The size in kilobytes of the test failures to keep in memory for each test suite
+         */
+        public long failureBudgetPerSuite() {
+            return failureBudgetPerSuite;
+        }
+
+        /**
+         * The size in kilobytes of the test failures to keep in memory across all the suites of a build whose results
+         * are published directly
+         */
+        public long failureBudgetPerBuild() {
+            return failureBudgetPerBuild;
+        }
+
+        public XCodeMetrics metrics() {
+            return metrics;
+        }
+
+        /**
+         * Serves the plugin's metrics in the Prometheus text format at /descriptorByName/au.com.rayh.XCodeBuilder/metrics
+         */
+        public void doMetrics(StaplerRequest req, StaplerResponse rsp) throws IOException {
+            Hudson.getInstance().checkPermission(Hudson.READ);
+            rsp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+            PrintWriter writer = rsp.getWriter();
+            metrics.write(writer);
+            writer.close();
+        }
+
+        /**
+         * Whether XCode jobs should be sent to the nodes where they last built, see {@link WarmCacheLoadBalancer}
+         */
+        public boolean preferWarmNodes() {
+            return preferWarmNodes;
+        }
+
+        public WarmCacheRegistry warmCacheRegistry() {
+            return warmCacheRegistry;
+        }
+
+        /**
+         * Records and persists a warm build, holding the same lock as {@link #save()} so the registry isn't changed while it is written out
+         */
+        public synchronized void recordWarmBuild(String location, String fingerprint, long duration) {
+            warmCacheRegistry.record(location, fingerprint, duration);
+            save();
+        }
+
+        /**
+         * @return the cache of packaged artifacts, or null if none is configured
+         */
+        public ArtifactCache artifactCache() {
+            if(StringUtils.isEmpty(artifactCachePath)) {
+                return null;
+            }
+            return new ArtifactCache(artifactCachePath, artifactCacheSize * 1024 * 1024);
+        }
+
     }
 }
 
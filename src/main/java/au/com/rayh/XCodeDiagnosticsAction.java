@@ -0,0 +1,143 @@
+package au.com.rayh;
+
+import hudson.XmlFile;
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import javax.servlet.http.HttpServletResponse;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Index of the compiler diagnostics and test failures of a build, each pointing at its byte offset in the console log
+ * so that the log can be opened at the right place instead of being loaded and searched in full.
+ *
+ * @author ray
+ */
+public class XCodeDiagnosticsAction implements Action {
+    /**
+     * How much of the console log to show from a diagnostic's offset
+     */
+    private static final int LOG_WINDOW = 16 * 1024;
+
+    private static final String INDEX_FILE = "xcode-diagnostics.xml";
+
+    private final AbstractBuild<?,?> build;
+    private final int errorCount;
+    private final int warningCount;
+    private final int testFailureCount;
+    private final int truncatedTestFailureCount;
+
+    /**
+     * Writes the diagnostics to their own file in the build directory, so that they are only loaded when looked at
+     * rather than with every build record.
+     *
+     * @param truncatedTestFailures the number of test failures left out of the diagnostics for being over budget
+     */
+    public XCodeDiagnosticsAction(AbstractBuild<?,?> build, List<Diagnostic> diagnostics, int truncatedTestFailures) throws IOException {
+        this.build = build;
+        this.errorCount = count(diagnostics, Diagnostic.Type.ERROR);
+        this.warningCount = count(diagnostics, Diagnostic.Type.WARNING);
+        this.testFailureCount = count(diagnostics, Diagnostic.Type.TEST_FAILURE) + truncatedTestFailures;
+        this.truncatedTestFailureCount = truncatedTestFailures;
+        getIndexFile().write(new ArrayList<Diagnostic>(diagnostics));
+    }
+
+    private static int count(List<Diagnostic> diagnostics, Diagnostic.Type type) {
+        int count = 0;
+        for(Diagnostic diagnostic : diagnostics) {
+            if(diagnostic.getType()==type) count++;
+        }
+        return count;
+    }
+
+    private XmlFile getIndexFile() {
+        return new XmlFile(new File(build.getRootDir(), INDEX_FILE));
+    }
+
+    public AbstractBuild<?,?> getBuild() {
+        return build;
+    }
+
+    /**
+     * Reads the diagnostics back from the build directory
+     */
+    @SuppressWarnings("unchecked")
+    public List<Diagnostic> getDiagnostics() throws IOException {
+        XmlFile index = getIndexFile();
+        if(!index.exists()) {
+            return new ArrayList<Diagnostic>();
+        }
+        return (List<Diagnostic>)index.read();
+    }
+
+    public int getErrorCount() {
+        return errorCount;
+    }
+
+    public int getWarningCount() {
+        return warningCount;
+    }
+
+    /**
+     * All test failures, including those that are not listed
+     */
+    public int getTestFailureCount() {
+        return testFailureCount;
+    }
+
+    /**
+     * The test failures that are not listed because they were over the failure budgets
+     */
+    public int getTruncatedTestFailureCount() {
+        return truncatedTestFailureCount;
+    }
+
+    public String getIconFileName() {
+        return "warning.gif";
+    }
+
+    public String getDisplayName() {
+        return "XCode Diagnostics";
+    }
+
+    public String getUrlName() {
+        return "xcodeDiagnostics";
+    }
+
+    /**
+     * Serves the portion of the console log starting at the given offset, without reading the rest of it.
+     */
+    public void doLog(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        long offset;
+        try {
+            offset = Long.parseLong(req.getParameter("offset"));
+        } catch(NumberFormatException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "offset must be a number");
+            return;
+        }
+
+        RandomAccessFile log = new RandomAccessFile(build.getLogFile(), "r");
+        try {
+            if(offset<0 || offset>=log.length()) {
+                rsp.sendError(HttpServletResponse.SC_NOT_FOUND, "offset is outside of the console log");
+                return;
+            }
+            byte[] window = new byte[(int)Math.min(LOG_WINDOW, log.length() - offset)];
+            log.seek(offset);
+            log.readFully(window);
+
+            rsp.setContentType("text/plain;charset=UTF-8");
+            PrintWriter writer = rsp.getWriter();
+            writer.write(new String(window, "UTF-8"));
+            writer.close();
+        } finally {
+            log.close();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package au.com.rayh;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Plugin-wide counters and histograms, written out in the Prometheus text exposition format.
+ * Counters are striped across threads so that concurrent builds updating them from the parser don't contend.
+ *
+ * @author ray
+ */
+public class XCodeMetrics {
+    private static final long[] PHASE_BUCKETS = { 1000, 5000, 15000, 30000, 60000, 120000, 300000, 600000, 1200000, 1800000, 3600000 };
+    private static final long[] PACKAGING_BUCKETS = { 1000, 5000, 10000, 30000, 60000, 120000, 300000 };
+    private static final long[] REPORT_BUCKETS = { 1, 5, 10, 50, 100, 500, 1000, 5000 };
+
+    private final ConcurrentMap<String, Histogram> phaseDurations = new ConcurrentHashMap<String, Histogram>();
+    private final ConcurrentMap<String, Counter> toolLaunches = new ConcurrentHashMap<String, Counter>();
+    private final Counter parserLines = new Counter();
+    private final Counter parserBytes = new Counter();
+    private final Histogram reportWriteDurations = new Histogram(REPORT_BUCKETS);
+    private final Histogram packagingDurations = new Histogram(PACKAGING_BUCKETS);
+
+    /**
+     * A counter spread over several cells, indexed by thread, which are only summed when read
+     */
+    static class Counter {
+        private static final int STRIPES = 16;
+        // keep each stripe on its own cache line
+        private static final int PADDING = 8;
+
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+        void add(long amount) {
+            int stripe = (int)Thread.currentThread().getId() & (STRIPES - 1);
+            cells.addAndGet(stripe * PADDING, amount);
+        }
+
+        long get() {
+            long sum = 0;
+            for(int stripe = 0; stripe < STRIPES; stripe++) {
+                sum += cells.get(stripe * PADDING);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Observations in milliseconds, counted into fixed buckets
+     */
+    static class Histogram {
+        private final long[] bounds;
+        private final Counter[] buckets;
+        private final Counter sum = new Counter();
+        private final Counter count = new Counter();
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new Counter[bounds.length];
+            for(int i = 0; i < bounds.length; i++) {
+                buckets[i] = new Counter();
+            }
+        }
+
+        void observe(long millis) {
+            for(int i = 0; i < bounds.length; i++) {
+                if(millis<=bounds[i]) {
+                    buckets[i].add(1);
+                    break;
+                }
+            }
+            sum.add(millis);
+            count.add(1);
+        }
+
+        void write(PrintWriter writer, String name, String labels) {
+            String prefix = labels.length()==0 ? "" : labels + ",";
+            long cumulative = 0;
+            for(int i = 0; i < bounds.length; i++) {
+                cumulative += buckets[i].get();
+                writer.print(name + "_bucket{" + prefix + "le=\"" + seconds(bounds[i]) + "\"} " + cumulative + "\n");
+            }
+            long total = count.get();
+            writer.print(name + "_bucket{" + prefix + "le=\"+Inf\"} " + total + "\n");
+            String suffix = labels.length()==0 ? "" : "{" + labels + "}";
+            writer.print(name + "_sum" + suffix + " " + seconds(sum.get()) + "\n");
+            writer.print(name + "_count" + suffix + " " + total + "\n");
+        }
+    }
+
+    /**
+     * Records how long a phase of a build (e.g. prebuild, xcodebuild, packaging) took
+     */
+    public void phase(String phase, long millis) {
+        Histogram histogram = phaseDurations.get(phase);
+        if(histogram==null) {
+            phaseDurations.putIfAbsent(phase, new Histogram(PHASE_BUCKETS));
+            histogram = phaseDurations.get(phase);
+        }
+        histogram.observe(millis);
+    }
+
+    /**
+     * Records a launch of one of the command line tools
+     */
+    public void toolLaunched(String tool) {
+        Counter counter = toolLaunches.get(tool);
+        if(counter==null) {
+            toolLaunches.putIfAbsent(tool, new Counter());
+            counter = toolLaunches.get(tool);
+        }
+        counter.add(1);
+    }
+
+    /**
+     * Records a line of xcodebuild output having been parsed
+     */
+    public void lineParsed(long bytes) {
+        parserLines.add(1);
+        parserBytes.add(bytes);
+    }
+
+    public void reportWritten(long millis) {
+        reportWriteDurations.observe(millis);
+    }
+
+    /**
+     * Records how long it took to package a single app
+     */
+    public void appPackaged(long millis) {
+        packagingDurations.observe(millis);
+    }
+
+    /**
+     * Writes every metric, ending lines with \n as the exposition format requires regardless of platform
+     */
+    public void write(PrintWriter writer) {
+        writer.print("# HELP xcode_build_phase_duration_seconds Duration of each phase of the XCode build step." + "\n");
+        writer.print("# TYPE xcode_build_phase_duration_seconds histogram" + "\n");
+        for(Map.Entry<String, Histogram> phase : new TreeMap<String, Histogram>(phaseDurations).entrySet()) {
+            phase.getValue().write(writer, "xcode_build_phase_duration_seconds", "phase=\"" + labelValue(phase.getKey()) + "\"");
+        }
+
+        writer.print("# HELP xcode_parser_lines_total Lines of xcodebuild output parsed." + "\n");
+        writer.print("# TYPE xcode_parser_lines_total counter" + "\n");
+        writer.print("xcode_parser_lines_total " + parserLines.get() + "\n");
+
+        writer.print("# HELP xcode_parser_bytes_total Bytes of xcodebuild output parsed." + "\n");
+        writer.print("# TYPE xcode_parser_bytes_total counter" + "\n");
+        writer.print("xcode_parser_bytes_total " + parserBytes.get() + "\n");
+
+        writer.print("# HELP xcode_report_write_duration_seconds Time taken to write each JUnit test report." + "\n");
+        writer.print("# TYPE xcode_report_write_duration_seconds histogram" + "\n");
+        reportWriteDurations.write(writer, "xcode_report_write_duration_seconds", "");
+
+        writer.print("# HELP xcode_package_duration_seconds Time taken to package each app into an .ipa and dSYM zip." + "\n");
+        writer.print("# TYPE xcode_package_duration_seconds histogram" + "\n");
+        packagingDurations.write(writer, "xcode_package_duration_seconds", "");
+
+        writer.print("# HELP xcode_tool_launches_total Launches of each command line tool." + "\n");
+        writer.print("# TYPE xcode_tool_launches_total counter" + "\n");
+        for(Map.Entry<String, Counter> tool : new TreeMap<String, Counter>(toolLaunches).entrySet()) {
+            writer.print("xcode_tool_launches_total{tool=\"" + labelValue(tool.getKey()) + "\"} " + tool.getValue().get() + "\n");
+        }
+    }
+
+    /**
+     * Escapes a label value as the exposition format requires, since tool names come from configurable paths
+     */
+    static String labelValue(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String seconds(long millis) {
+        return String.valueOf(millis / 1000.0);
+    }
+}
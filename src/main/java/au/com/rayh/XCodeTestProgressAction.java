@@ -0,0 +1,198 @@
+package au.com.rayh;
+
+import au.com.rayh.report.TestFailure;
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Progress of the tests in a running build, updated by the parser as results arrive and polled by the build page.
+ * The suite sizes and durations of a build are used to estimate how much is left in the next one.
+ *
+ * @author ray
+ */
+public class XCodeTestProgressAction implements Action {
+    /**
+     * How many failures to keep for display; the test report has all of them
+     */
+    static final int MAX_FAILURES = 100;
+
+    private final AbstractBuild<?,?> build;
+    // only needed while the build runs, so not saved with it
+    private transient Map<String, Integer> expectedTests;
+    private transient Map<String, Float> expectedDurations;
+
+    private final Map<String, Integer> suiteTests = new HashMap<String, Integer>();
+    private final Map<String, Float> suiteDurations = new HashMap<String, Float>();
+    private final List<String> failures = new ArrayList<String>();
+    private int passed;
+    private int failed;
+    private boolean running = true;
+
+    private transient String currentSuite;
+    private transient int currentSuiteTests;
+    private transient long currentSuiteStarted;
+
+    /**
+     * @param previous the progress of the previous build, used to estimate what is left, or null
+     */
+    public XCodeTestProgressAction(AbstractBuild<?,?> build, XCodeTestProgressAction previous) {
+        this.build = build;
+        if(previous!=null) {
+            synchronized(previous) {
+                this.expectedTests = new HashMap<String, Integer>(previous.suiteTests);
+                this.expectedDurations = new HashMap<String, Float>(previous.suiteDurations);
+            }
+        } else {
+            this.expectedTests = new HashMap<String, Integer>();
+            this.expectedDurations = new HashMap<String, Float>();
+        }
+    }
+
+    public AbstractBuild<?,?> getBuild() {
+        return build;
+    }
+
+    public synchronized void suiteStarted(String name) {
+        currentSuite = name;
+        currentSuiteTests = 0;
+        currentSuiteStarted = System.currentTimeMillis();
+    }
+
+    public synchronized void testPassed() {
+        passed++;
+        currentSuiteTests++;
+    }
+
+    public synchronized void testFailed(String suite, String testCase, List<TestFailure> testFailures) {
+        failed++;
+        currentSuiteTests++;
+        if(failures.size()<MAX_FAILURES) {
+            StringBuilder failure = new StringBuilder(suite).append(".").append(testCase);
+            if(!testFailures.isEmpty()) {
+                failure.append(": ").append(testFailures.get(0).getMessage());
+            }
+            failures.add(failure.toString());
+        }
+    }
+
+    /**
+     * @param time how long the suite took, in seconds
+     */
+    public synchronized void suiteFinished(String name, int tests, float time) {
+        suiteTests.put(name, tests);
+        suiteDurations.put(name, time);
+        currentSuite = null;
+        currentSuiteTests = 0;
+    }
+
+    public synchronized void finished() {
+        running = false;
+        currentSuite = null;
+        expectedTests = null;
+        expectedDurations = null;
+    }
+
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    public synchronized int getPassed() {
+        return passed;
+    }
+
+    public synchronized int getFailed() {
+        return failed;
+    }
+
+    public synchronized List<String> getFailures() {
+        return new ArrayList<String>(failures);
+    }
+
+    /**
+     * @return the number of tests expected still to run, based on the previous build, or -1 if there is no previous build to go on
+     */
+    public synchronized int getRemaining() {
+        if(!running) return 0;
+        if(expectedTests==null || expectedTests.isEmpty()) return -1;
+
+        int remaining = 0;
+        for(Map.Entry<String, Integer> suite : expectedTests.entrySet()) {
+            if(!suiteTests.containsKey(suite.getKey())) {
+                remaining += suite.getValue();
+            }
+        }
+        if(currentSuite!=null && expectedTests.containsKey(currentSuite)) {
+            remaining -= currentSuiteTests;
+        }
+        return Math.max(0, remaining);
+    }
+
+    /**
+     * @return the estimated number of seconds until the tests finish, based on the previous build, or -1 if there is no previous build to go on
+     */
+    public synchronized long getEta() {
+        if(!running) return 0;
+        if(expectedDurations==null || expectedDurations.isEmpty()) return -1;
+
+        float remaining = 0;
+        for(Map.Entry<String, Float> suite : expectedDurations.entrySet()) {
+            if(!suiteDurations.containsKey(suite.getKey())) {
+                remaining += suite.getValue();
+            }
+        }
+        if(currentSuite!=null && expectedDurations.containsKey(currentSuite)) {
+            remaining -= (System.currentTimeMillis() - currentSuiteStarted) / 1000f;
+        }
+        return Math.max(0, Math.round(remaining));
+    }
+
+    /**
+     * @return true if any test results have been seen
+     */
+    public synchronized boolean hasResults() {
+        return passed + failed > 0 || !suiteTests.isEmpty();
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Test Progress";
+    }
+
+    public String getUrlName() {
+        return "xcodeTestProgress";
+    }
+
+    /**
+     * Serves the current progress as JSON for the build page to poll
+     */
+    public void doProgress(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        JSONObject progress = new JSONObject();
+        synchronized(this) {
+            progress.put("running", running);
+            progress.put("passed", passed);
+            progress.put("failed", failed);
+            progress.put("remaining", getRemaining());
+            progress.put("eta", getEta());
+            progress.put("failures", JSONArray.fromObject(failures));
+        }
+
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.setHeader("Cache-Control", "no-cache");
+        PrintWriter writer = rsp.getWriter();
+        writer.write(progress.toString());
+        writer.close();
+    }
+}
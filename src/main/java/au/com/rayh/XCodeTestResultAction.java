@@ -0,0 +1,93 @@
+package au.com.rayh;
+
+import au.com.rayh.report.TestCase;
+import au.com.rayh.report.TestSuite;
+import hudson.XmlFile;
+import hudson.model.AbstractBuild;
+import hudson.tasks.test.AbstractTestResultAction;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test results published straight from the parsed xcodebuild output, rather than by writing JUnit XML reports
+ * and having the JUnit publisher read them back in.
+ *
+ * @author ray
+ */
+public class XCodeTestResultAction extends AbstractTestResultAction<XCodeTestResultAction> {
+    private static final String RESULT_FILE = "xcode-test-results.xml";
+
+    private final int failCount;
+    private final int totalCount;
+
+    private transient WeakReference<List<TestSuite>> testSuites;
+
+    /**
+     * Writes the suites to their own file in the build directory, so that they are only loaded when looked at
+     * rather than with every build record.
+     */
+    public XCodeTestResultAction(AbstractBuild owner, List<TestSuite> testSuites) throws IOException {
+        super(owner);
+
+        int failures = 0;
+        int tests = 0;
+        for(TestSuite testSuite : testSuites) {
+            failures += testSuite.getFailures();
+            tests += testSuite.getTests();
+        }
+        this.failCount = failures;
+        this.totalCount = tests;
+
+        List<TestSuite> copy = new ArrayList<TestSuite>(testSuites);
+        getResultFile().write(copy);
+        this.testSuites = new WeakReference<List<TestSuite>>(copy);
+    }
+
+    private XmlFile getResultFile() {
+        return new XmlFile(new File(owner.getRootDir(), RESULT_FILE));
+    }
+
+    /**
+     * Reads the suites back from the build directory, unless they are still in memory from the last time
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized List<TestSuite> getTestSuites() throws IOException {
+        List<TestSuite> suites = testSuites==null ? null : testSuites.get();
+        if(suites==null) {
+            XmlFile results = getResultFile();
+            suites = results.exists() ? (List<TestSuite>)results.read() : new ArrayList<TestSuite>();
+            testSuites = new WeakReference<List<TestSuite>>(suites);
+        }
+        return suites;
+    }
+
+    public List<TestCase> getFailedTestCases() throws IOException {
+        List<TestCase> failed = new ArrayList<TestCase>();
+        for(TestSuite testSuite : getTestSuites()) {
+            for(TestCase testCase : testSuite.getTestCases()) {
+                if(testCase.isFailed()) {
+                    failed.add(testCase);
+                }
+            }
+        }
+        return failed;
+    }
+
+    @Override
+    public int getFailCount() {
+        return failCount;
+    }
+
+    @Override
+    public int getTotalCount() {
+        return totalCount;
+    }
+
+    @Override
+    public Object getResult() {
+        return this;
+    }
+}
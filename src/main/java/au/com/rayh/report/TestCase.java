@@ -23,6 +23,10 @@ public class TestCase {
     @XmlElement(name="failure")
     List<TestFailure> failures = new ArrayList<TestFailure>();
 
+    int truncatedFailures;
+
+    boolean failed;
+
     public TestCase() {
     }
 
@@ -31,6 +35,10 @@ public class TestCase {
         this.name = name;
     }
 
+    public String getClassname() {
+        return classname;
+    }
+
     public String getName() {
         return name;
     }
@@ -46,4 +54,26 @@ public class TestCase {
     public List<TestFailure> getFailures() {
         return failures;
     }
+
+    /**
+     * Marks the test case as failed, which it may be without any failures having been reported, e.g. if it crashed
+     */
+    public void setFailed(boolean failed) {
+        this.failed = failed;
+    }
+
+    public boolean isFailed() {
+        return failed || !failures.isEmpty();
+    }
+
+    /**
+     * Counts a failure that was left out of {@link #getFailures()} to keep memory use down
+     */
+    public void addTruncatedFailure() {
+        truncatedFailures+=1;
+    }
+
+    public int getTruncatedFailures() {
+        return truncatedFailures;
+    }
 }
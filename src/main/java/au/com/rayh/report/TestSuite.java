@@ -66,6 +66,10 @@ public class TestSuite {
         return name;
     }
 
+    public float getTime() {
+        return time;
+    }
+
     public Date getStartTime() {
         return startTime;
     }
@@ -0,0 +1,160 @@
+package au.com.rayh;
+
+import hudson.FilePath;
+import java.io.File;
+import java.io.IOException;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Uses a temporary directory to stand in for the shared filesystem holding the cache.
+ *
+ * @author ray
+ */
+public class ArtifactCacheTest {
+    File tempDir;
+    File cacheDir;
+    FilePath buildDirectory;
+    FilePath app;
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        tempDir = File.createTempFile("artifact-cache", "");
+        tempDir.delete();
+        tempDir.mkdirs();
+        cacheDir = new File(tempDir, "cache");
+
+        buildDirectory = new FilePath(new File(tempDir, "build"));
+        app = buildDirectory.child("PisClient.app");
+        app.child("PisClient").write("binary", "UTF-8");
+        app.child("Info.plist").write("<plist/>", "UTF-8");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void shouldGiveSameFingerprintForSameInputs() throws Exception {
+        ArtifactCache cache = new ArtifactCache(cacheDir.getPath(), Long.MAX_VALUE);
+        String key = cache.fingerprint(app, null, "iphoneos");
+        assertEquals(key, cache.fingerprint(app, null, "iphoneos"));
+        assertFalse(key.equals(cache.fingerprint(app, null, "iphonesimulator")));
+
+        app.child("PisClient").write("changed binary", "UTF-8");
+        assertFalse(key.equals(cache.fingerprint(app, null, "iphoneos")));
+
+        // e.g. a version number stamped by agvtool
+        app.child("PisClient").write("binary", "UTF-8");
+        app.child("Info.plist").write("<plist><key>CFBundleVersion</key><string>2</string></plist>", "UTF-8");
+        assertFalse(key.equals(cache.fingerprint(app, null, "iphoneos")));
+    }
+
+    @Test
+    public void shouldMissWhenNothingStored() throws Exception {
+        ArtifactCache cache = new ArtifactCache(cacheDir.getPath(), Long.MAX_VALUE);
+        String key = cache.fingerprint(app, null, "iphoneos");
+        assertFalse(cache.restore(key, buildDirectory.child("PisClient.ipa"), buildDirectory.child("PisClient-dSYM.zip")));
+    }
+
+    @Test
+    public void shouldRestoreStoredArtifacts() throws Exception {
+        ArtifactCache cache = new ArtifactCache(cacheDir.getPath(), Long.MAX_VALUE);
+        String key = cache.fingerprint(app, null, "iphoneos");
+        FilePath ipa = buildDirectory.child("PisClient-1.ipa");
+        FilePath dsymZip = buildDirectory.child("PisClient-1-dSYM.zip");
+        ipa.write("ipa", "UTF-8");
+        dsymZip.write("dsym", "UTF-8");
+        cache.store(key, ipa, dsymZip);
+
+        FilePath restoredIpa = buildDirectory.child("PisClient-2.ipa");
+        FilePath restoredDsymZip = buildDirectory.child("PisClient-2-dSYM.zip");
+        assertTrue(cache.restore(key, restoredIpa, restoredDsymZip));
+        assertEquals("ipa", restoredIpa.readToString());
+        assertEquals("dsym", restoredDsymZip.readToString());
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedEntries() throws Exception {
+        ArtifactCache cache = new ArtifactCache(cacheDir.getPath(), 10, 0);
+        FilePath ipa = buildDirectory.child("PisClient.ipa");
+        FilePath dsymZip = buildDirectory.child("PisClient-dSYM.zip");
+
+        ipa.write("first", "UTF-8");
+        cache.store("first", ipa, dsymZip);
+        new File(cacheDir, "first").setLastModified(System.currentTimeMillis() - 60000);
+
+        ipa.write("second", "UTF-8");
+        cache.store("second", ipa, dsymZip);
+
+        assertFalse(new File(cacheDir, "first").exists());
+        assertTrue(new File(cacheDir, "second").exists());
+        assertFalse(cache.restore("first", ipa, dsymZip));
+        assertTrue(cache.restore("second", ipa, dsymZip));
+    }
+
+    @Test
+    public void shouldNotShareRestoredFilesWithStore() throws Exception {
+        ArtifactCache cache = new ArtifactCache(cacheDir.getPath(), Long.MAX_VALUE);
+        FilePath ipa = buildDirectory.child("PisClient-1.ipa");
+        FilePath dsymZip = buildDirectory.child("PisClient-1-dSYM.zip");
+        ipa.write("ipa", "UTF-8");
+        cache.store("key", ipa, dsymZip);
+
+        FilePath restoredIpa = buildDirectory.child("PisClient-2.ipa");
+        assertTrue(cache.restore("key", restoredIpa, dsymZip));
+        restoredIpa.write("re-signed ipa", "UTF-8");
+
+        assertTrue(cache.restore("key", restoredIpa, dsymZip));
+        assertEquals("ipa", restoredIpa.readToString());
+    }
+
+    @Test
+    public void shouldOnlyEvictOncePerInterval() throws Exception {
+        ArtifactCache cache = new ArtifactCache(cacheDir.getPath(), 10);
+        FilePath ipa = buildDirectory.child("PisClient.ipa");
+        FilePath dsymZip = buildDirectory.child("PisClient-dSYM.zip");
+
+        ipa.write("first", "UTF-8");
+        cache.store("first", ipa, dsymZip);
+        ipa.write("second", "UTF-8");
+        cache.store("second", ipa, dsymZip);
+
+        assertTrue(new File(cacheDir, "first").exists());
+        assertTrue(new File(cacheDir, "second").exists());
+    }
+
+    @Test
+    public void shouldDeleteStaleTemporaryEntries() throws Exception {
+        ArtifactCache cache = new ArtifactCache(cacheDir.getPath(), Long.MAX_VALUE, 0);
+        File stale = new File(cacheDir, "stale.tmp");
+        FileUtils.writeStringToFile(new File(stale, "app.ipa"), "half an ipa", "UTF-8");
+        stale.setLastModified(System.currentTimeMillis() - ArtifactCache.STALE_TEMP_AGE - 60000);
+        File fresh = new File(cacheDir, "fresh.tmp");
+        fresh.mkdirs();
+
+        cache.evict(cacheDir);
+
+        assertFalse(stale.exists());
+        assertTrue(fresh.exists());
+    }
+
+    @Test
+    public void shouldMissWhenEntryCannotBeCopied() throws Exception {
+        ArtifactCache cache = new ArtifactCache(cacheDir.getPath(), Long.MAX_VALUE);
+        FilePath ipa = buildDirectory.child("PisClient.ipa");
+        FilePath dsymZip = buildDirectory.child("PisClient-dSYM.zip");
+        ipa.write("ipa", "UTF-8");
+        cache.store("key", ipa, dsymZip);
+
+        // the ipa can't be written where a directory already is
+        FilePath restoredIpa = buildDirectory.child("Restored.ipa");
+        restoredIpa.child("in-the-way").write("", "UTF-8");
+        assertFalse(cache.restore("key", restoredIpa, buildDirectory.child("Restored-dSYM.zip")));
+        assertFalse(buildDirectory.child("Restored-dSYM.zip").exists());
+    }
+}
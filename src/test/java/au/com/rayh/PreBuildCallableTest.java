@@ -0,0 +1,119 @@
+package au.com.rayh;
+
+import hudson.FilePath;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs the pre-build steps locally, with standard unix tools and small scripts standing in for xcodebuild and agvtool.
+ *
+ * @author ray
+ */
+public class PreBuildCallableTest {
+    File tempDir;
+    Map<String,String> envs;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = File.createTempFile("pre-build", "");
+        tempDir.delete();
+        tempDir.mkdirs();
+        envs = new HashMap<String,String>();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    private File script(String name, String body) throws IOException, InterruptedException {
+        File script = new File(tempDir, name);
+        FileUtils.writeStringToFile(script, "#!/bin/sh\n" + body + "\n", "UTF-8");
+        new FilePath(script).chmod(0755);
+        return script;
+    }
+
+    @Test
+    public void shouldRunSucceedingStep() throws Exception {
+        PreBuildCallable.Result result = new PreBuildCallable("/bin/echo", "/bin/echo", envs).invoke(tempDir, null);
+        assertFalse(result.isAborted());
+
+        List<PreBuildCallable.Step> steps = result.getSteps();
+        assertEquals(3, steps.size());
+        PreBuildCallable.Step version = steps.get(2);
+        assertFalse(version.isFailed());
+        assertEquals("echo", version.getTool());
+        assertEquals("-version\n", version.getOutput());
+    }
+
+    @Test
+    public void shouldFailStepWithNonZeroExit() throws Exception {
+        PreBuildCallable preBuild = new PreBuildCallable("/bin/echo", "/usr/bin/false", envs);
+        preBuild.setVersionNumber("42");
+        PreBuildCallable.Result result = preBuild.invoke(tempDir, null);
+
+        PreBuildCallable.Step newVersion = result.getSteps().get(3);
+        assertTrue(newVersion.isFailed());
+        assertEquals("Could not set the CFBundleVersion to 42", newVersion.getFailureMessage());
+        assertFalse(result.isAborted());
+    }
+
+    @Test
+    public void shouldFailStepWhenToolCannotBeLaunched() throws Exception {
+        String missing = new File(tempDir, "xcodebuild").getPath();
+        PreBuildCallable.Result result = new PreBuildCallable(missing, "/bin/echo", envs).invoke(tempDir, null);
+
+        assertTrue(result.getSteps().get(0).isFailed());
+        PreBuildCallable.Step version = result.getSteps().get(2);
+        assertTrue(version.isFailed());
+        assertTrue(version.getOutput().length() > 1);
+        assertTrue(version.getOutput().endsWith("\n"));
+    }
+
+    @Test
+    public void shouldAbortWhenVersionFails() throws Exception {
+        PreBuildCallable preBuild = new PreBuildCallable("/usr/bin/false", "/bin/echo", envs);
+        preBuild.setVersionNumber("42");
+        PreBuildCallable.Result result = preBuild.invoke(tempDir, null);
+
+        assertTrue(result.isAborted());
+        assertEquals(3, result.getSteps().size());
+        assertEquals("Could not determine the XCode version", result.getSteps().get(2).getFailureMessage());
+    }
+
+    @Test
+    public void shouldRecordTimeOfEachStep() throws Exception {
+        File slowTool = script("agvtool", "sleep 1");
+        PreBuildCallable preBuild = new PreBuildCallable("/bin/echo", slowTool.getPath(), envs);
+        preBuild.setVersionNumber("42");
+        PreBuildCallable.Result result = preBuild.invoke(tempDir, null);
+
+        long total = 0;
+        for(PreBuildCallable.Step step : result.getSteps()) {
+            assertTrue(step.getDuration() >= 0);
+            total += step.getDuration();
+        }
+        assertTrue(result.getSteps().get(3).getDuration() >= 900);
+        assertEquals(total, result.getDuration());
+    }
+
+    @Test
+    public void shouldApplyEnvironmentOverrides() throws Exception {
+        File xcodebuild = script("xcodebuild", "echo \"$PATH\"; echo \"[${HOME-unset}]\"");
+        envs.put("PATH+XCODE", "/Developer/usr/bin");
+        envs.put("HOME", "");
+        PreBuildCallable.Result result = new PreBuildCallable(xcodebuild.getPath(), "/bin/echo", envs).invoke(tempDir, null);
+
+        String output = result.getSteps().get(2).getOutput();
+        assertTrue(output, output.startsWith("/Developer/usr/bin" + File.pathSeparator));
+        assertTrue(output, output.endsWith("[unset]\n"));
+    }
+}
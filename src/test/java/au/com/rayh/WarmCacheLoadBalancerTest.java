@@ -0,0 +1,86 @@
+package au.com.rayh;
+
+import au.com.rayh.WarmCacheLoadBalancer.Slot;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Simulates the free executors of a farm of Mac nodes and the warm builds recorded on them.
+ *
+ * @author ray
+ */
+public class WarmCacheLoadBalancerTest {
+    static final long NOW = 1287000000000L;
+    static final List<String> FINGERPRINTS = Collections.singletonList("PisClient|Release");
+
+    WarmCacheRegistry registry;
+    List<Slot> slots;
+
+    @Before
+    public void setUp() {
+        registry = new WarmCacheRegistry();
+        slots = new ArrayList<Slot>();
+    }
+
+    private int choose() {
+        return WarmCacheLoadBalancer.select(slots, registry.rank(FINGERPRINTS, NOW));
+    }
+
+    @Test
+    public void shouldChooseNothingWhenNoNodeIsWarm() {
+        slots.add(new Slot("mac-1", 0, true));
+        slots.add(new Slot("mac-2", 0, true));
+        assertEquals(-1, choose());
+    }
+
+    @Test
+    public void shouldChooseFastestWarmNodeThatIsFree() {
+        registry.record("mac-1", "PisClient|Release", 60000, NOW);
+        registry.record("mac-2", "PisClient|Release", 240000, NOW);
+        registry.record("mac-3", "PisClient|Release", 30000, NOW);
+        slots.add(new Slot("mac-1", 0, true));
+        slots.add(new Slot("mac-2", 0, true));
+        // mac-3 is busy, so has no slot
+        assertEquals(0, choose());
+    }
+
+    @Test
+    public void shouldNotChooseWarmNodeTheJobCannotRunOn() {
+        registry.record("mac-1", "PisClient|Release", 60000, NOW);
+        registry.record("mac-2", "PisClient|Release", 240000, NOW);
+        slots.add(new Slot("mac-1", 0, false));
+        slots.add(new Slot("mac-2", 0, true));
+        assertEquals(1, choose());
+    }
+
+    @Test
+    public void shouldChooseWarmExecutorWhenExecutorsAreIsolated() {
+        registry.record(WarmCacheRegistry.location("mac-1", 1), "PisClient|Release", 60000, NOW);
+        slots.add(new Slot("mac-1", 0, true));
+        slots.add(new Slot("mac-1", 1, true));
+        assertEquals(1, choose());
+    }
+
+    @Test
+    public void shouldFallBackToAnotherExecutorOfWarmNode() {
+        registry.record(WarmCacheRegistry.location("mac-1", 1), "PisClient|Release", 60000, NOW);
+        slots.add(new Slot("mac-2", 0, true));
+        slots.add(new Slot("mac-1", 0, true));
+        assertEquals(1, choose());
+    }
+
+    @Test
+    public void shouldPreferWarmExecutorOverFasterNodeThatIsOnlyWarmForAnotherExecutor() {
+        registry.record(WarmCacheRegistry.location("mac-1", 1), "PisClient|Release", 30000, NOW);
+        registry.record(WarmCacheRegistry.location("mac-2", 0), "PisClient|Release", 60000, NOW);
+        slots.add(new Slot("mac-1", 0, true));
+        slots.add(new Slot("mac-2", 0, true));
+        assertEquals(Arrays.asList("mac-1#1", "mac-2#0"), registry.rank(FINGERPRINTS, NOW));
+        assertEquals(1, choose());
+    }
+}
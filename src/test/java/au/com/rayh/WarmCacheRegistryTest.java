@@ -0,0 +1,51 @@
+package au.com.rayh;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Simulates a farm of Mac nodes and the durations of the builds recorded on them.
+ *
+ * @author ray
+ */
+public class WarmCacheRegistryTest {
+    static final long NOW = 1287000000000L;
+
+    WarmCacheRegistry registry;
+
+    @Before
+    public void setUp() {
+        registry = new WarmCacheRegistry();
+    }
+
+    @Test
+    public void shouldRankNothingWhenNoNodeIsWarm() {
+        registry.record("mac-1", "PisClient|Release", 60000, NOW);
+        assertTrue(registry.rank(Collections.singletonList("PisClient|Debug"), NOW).isEmpty());
+    }
+
+    @Test
+    public void shouldPreferNodeWithFastestWarmBuild() {
+        registry.record("mac-1", "PisClient|Release", 240000, NOW);
+        registry.record("mac-2", "PisClient|Release", 60000, NOW);
+        registry.record("mac-3", "OtherApp|Release", 30000, NOW);
+        assertEquals(Arrays.asList("mac-2", "mac-1"), registry.rank(Collections.singletonList("PisClient|Release"), NOW));
+    }
+
+    @Test
+    public void shouldPreferNodeWarmForMoreFingerprints() {
+        registry.record("mac-1", "PisClient|Release", 60000, NOW);
+        registry.record("mac-2", "PisClient|Release", 90000, NOW);
+        registry.record("mac-2", "PisClientTests|Debug", 90000, NOW);
+        assertEquals(Arrays.asList("mac-2", "mac-1"), registry.rank(Arrays.asList("PisClient|Release", "PisClientTests|Debug"), NOW));
+    }
+
+    @Test
+    public void shouldForgetBuildsOlderThanWarmPeriod() {
+        registry.record("mac-1", "PisClient|Release", 60000, NOW);
+        assertTrue(registry.rank(Collections.singletonList("PisClient|Release"), NOW + WarmCacheRegistry.WARM_PERIOD).isEmpty());
+    }
+}
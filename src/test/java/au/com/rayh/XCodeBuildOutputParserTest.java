@@ -14,6 +14,8 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
 import java.util.Date;
 import org.junit.After;
 import org.junit.Before;
@@ -29,7 +31,7 @@ public class XCodeBuildOutputParserTest {
 
     @Before
     public void setUp() throws IOException, InterruptedException {
-        parser = new XCodeBuildOutputParser(new FilePath(new File(".")), new TaskListener() {
+        parser = new XCodeBuildOutputParser(new FilePath(new File("test-reports")), new TaskListener() {
 
             public PrintStream getLogger() {
                 try {
@@ -131,5 +133,196 @@ public class XCodeBuildOutputParserTest {
         assertEquals(1.234, parser.currentTestSuite.getTestCases().get(0).getTime());
         assertEquals(1,parser.currentTestSuite.getTests());
         assertEquals(1,parser.currentTestSuite.getFailures());
+        assertTrue(parser.currentTestSuite.getTestCases().get(0).isFailed());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldRecordCompilerWarningWithLogOffset() throws Exception {
+        parser.setLogOffset(1000);
+        String line = "/Users/ray/Development/Projects/PisClient/Classes/PisClient.m:42:5: warning: unused variable 'response'";
+        parser.handleLine(line);
+        assertEquals(1, parser.getDiagnostics().size());
+        assertEquals(Diagnostic.Type.WARNING, parser.getDiagnostics().get(0).getType());
+        assertEquals("/Users/ray/Development/Projects/PisClient/Classes/PisClient.m:42:5", parser.getDiagnostics().get(0).getLocation());
+        assertEquals("unused variable 'response'", parser.getDiagnostics().get(0).getMessage());
+        assertEquals(1000, parser.getDiagnostics().get(0).getOffset());
+    }
+
+    @Test
+    public void shouldRecordToolDiagnostic() throws Exception {
+        parser.handleLine("ld: warning: directory not found for option '-L/Users/ray/Development/Projects/PisClient/lib'");
+        parser.handleLine("clang: error: linker command failed with exit code 1 (use -v to see invocation)");
+        assertEquals(2, parser.getDiagnostics().size());
+        assertEquals(Diagnostic.Type.WARNING, parser.getDiagnostics().get(0).getType());
+        assertEquals("ld", parser.getDiagnostics().get(0).getLocation());
+        assertEquals("directory not found for option '-L/Users/ray/Development/Projects/PisClient/lib'", parser.getDiagnostics().get(0).getMessage());
+        assertEquals(Diagnostic.Type.ERROR, parser.getDiagnostics().get(1).getType());
+        assertEquals("clang", parser.getDiagnostics().get(1).getLocation());
+    }
+
+    @Test
+    public void shouldRecordDiagnosticWithoutLocation() throws Exception {
+        parser.handleLine("warning: no rule to process file '/Users/ray/Development/Projects/PisClient/README.txt' of type text for architecture armv7");
+        parser.handleLine("error: can't exec '/usr/bin/pngcrush' (No such file or directory)");
+        assertEquals(2, parser.getDiagnostics().size());
+        assertEquals(Diagnostic.Type.WARNING, parser.getDiagnostics().get(0).getType());
+        assertEquals("", parser.getDiagnostics().get(0).getLocation());
+        assertEquals("no rule to process file '/Users/ray/Development/Projects/PisClient/README.txt' of type text for architecture armv7", parser.getDiagnostics().get(0).getMessage());
+        assertEquals(Diagnostic.Type.ERROR, parser.getDiagnostics().get(1).getType());
+    }
+
+    @Test
+    public void shouldRecordLinkerErrors() throws Exception {
+        parser.handleLine("ld: library not found for -lPisClient");
+        parser.handleLine("Undefined symbols for architecture armv7:");
+        assertEquals(2, parser.getDiagnostics().size());
+        assertEquals(Diagnostic.Type.ERROR, parser.getDiagnostics().get(0).getType());
+        assertEquals("ld", parser.getDiagnostics().get(0).getLocation());
+        assertEquals("library not found for -lPisClient", parser.getDiagnostics().get(0).getMessage());
+        assertEquals(Diagnostic.Type.ERROR, parser.getDiagnostics().get(1).getType());
+        assertEquals("Undefined symbols for architecture armv7", parser.getDiagnostics().get(1).getMessage());
+    }
+
+    @Test
+    public void shouldCountAllBytesOfLinesLongerThanParsed() throws Exception {
+        XCodeMetrics metrics = new XCodeMetrics();
+        parser.setMetrics(metrics);
+        byte[] line = new byte[XCodeBuildOutputParser.MAX_LINE_LENGTH + 100];
+        Arrays.fill(line, (byte)'x');
+        line[line.length - 1] = '\n';
+        parser.getOutputStream().write(line);
+
+        StringWriter output = new StringWriter();
+        metrics.write(new PrintWriter(output));
+        assertTrue(output.toString().contains("xcode_parser_bytes_total " + line.length + "\n"));
+    }
+
+    @Test
+    public void shouldRecordByteOffsetOfEachDiagnosticLine() throws Exception {
+        parser.setLogOffset(100);
+        String output = "CompileC build/PisClient.o PisClient.m normal armv7\n"
+                + "PisClient.m:3: error: expected ';' before '}' token\n";
+        parser.getOutputStream().write(output.getBytes());
+        assertEquals(1, parser.getDiagnostics().size());
+        assertEquals(Diagnostic.Type.ERROR, parser.getDiagnostics().get(0).getType());
+        assertEquals(100 + output.indexOf("PisClient.m:3"), parser.getDiagnostics().get(0).getOffset());
+    }
+
+    @Test
+    public void shouldRecordTestFailureDiagnostic() throws Exception {
+        parser.currentTestSuite = new TestSuite("host", "PisClientTestCase", new Date());
+        parser.currentTestCase = new TestCase("PisClientTestCase", "testThatFails");
+        String line = "PisClientTestCase.m:21: error: -[PisClientTestCase testThatFails] : This always fails";
+        parser.handleLine(line);
+        assertEquals(1, parser.getDiagnostics().size());
+        assertEquals(Diagnostic.Type.TEST_FAILURE, parser.getDiagnostics().get(0).getType());
+        assertEquals("PisClientTestCase.m:21", parser.getDiagnostics().get(0).getLocation());
+    }
+
+    @Test
+    public void shouldCollectFinishedTestSuiteWithoutWritingReport() throws Exception {
+        parser.setWriteTestReports(false);
+        parser.setCollectTestSuites(true);
+        parser.currentTestSuite = new TestSuite("host", "UnreportedTestCase", new Date());
+        String line = "Test Suite 'UnreportedTestCase' finished at 2010-10-02 13:41:23 GMT 0000.";
+        parser.handleLine(line);
+        assertNull(parser.currentTestSuite);
+        assertEquals(1, parser.getTestSuites().size());
+        assertEquals("UnreportedTestCase", parser.getTestSuites().get(0).getName());
+        assertFalse(new File("test-reports", "TEST-UnreportedTestCase.xml").exists());
+    }
+
+    @Test
+    public void shouldPublishProgressAsResultsArrive() throws Exception {
+        XCodeTestProgressAction progress = new XCodeTestProgressAction(null, null);
+        parser.setProgress(progress);
+        parser.handleLine("Test Suite 'PisClientTestCase' started at 2010-10-02 13:39:23 GMT 0000");
+        parser.handleLine("Test Case '-[PisClientTestCase testThatPasses]' started.");
+        parser.handleLine("Test Case '-[PisClientTestCase testThatPasses]' passed (1.234 seconds).");
+        parser.handleLine("Test Case '-[PisClientTestCase testThatFails]' started.");
+        parser.handleLine("PisClientTestCase.m:21: error: -[PisClientTestCase testThatFails] : This always fails");
+        parser.handleLine("Test Case '-[PisClientTestCase testThatFails]' failed (0.010 seconds).");
+        assertEquals(1, progress.getPassed());
+        assertEquals(1, progress.getFailed());
+        assertEquals(1, progress.getFailures().size());
+        assertEquals("PisClientTestCase.testThatFails: This always fails", progress.getFailures().get(0));
+        assertEquals(-1, progress.getRemaining());
+    }
+
+    @Test
+    public void shouldEstimateRemainingTestsFromPreviousProgress() throws Exception {
+        XCodeTestProgressAction previous = new XCodeTestProgressAction(null, null);
+        previous.suiteFinished("PisClientTestCase", 2, 120);
+        previous.suiteFinished("OtherTestCase", 5, 300);
+        previous.finished();
+
+        XCodeTestProgressAction progress = new XCodeTestProgressAction(null, previous);
+        parser.setProgress(progress);
+        parser.handleLine("Test Suite 'PisClientTestCase' started at 2010-10-02 13:39:23 GMT 0000");
+        parser.handleLine("Test Case '-[PisClientTestCase testThatPasses]' started.");
+        parser.handleLine("Test Case '-[PisClientTestCase testThatPasses]' passed (1.234 seconds).");
+        assertEquals(6, progress.getRemaining());
+
+        parser.handleLine("Test Case '-[PisClientTestCase testThatPassesToo]' started.");
+        parser.handleLine("Test Case '-[PisClientTestCase testThatPassesToo]' passed (1.234 seconds).");
+        parser.handleLine("Test Suite 'PisClientTestCase' finished at 2010-10-02 13:41:23 GMT 0000.");
+        assertEquals(5, progress.getRemaining());
+        assertEquals(300, progress.getEta());
+    }
+
+    @Test
+    public void shouldNotCountNewSuitesAgainstRemainingTests() throws Exception {
+        XCodeTestProgressAction previous = new XCodeTestProgressAction(null, null);
+        previous.suiteFinished("PisClientTestCase", 2, 120);
+        previous.finished();
+
+        XCodeTestProgressAction progress = new XCodeTestProgressAction(null, previous);
+        parser.setProgress(progress);
+        parser.handleLine("Test Suite 'NewTestCase' started at 2010-10-02 13:39:23 GMT 0000");
+        parser.handleLine("Test Case '-[NewTestCase testThatPasses]' started.");
+        parser.handleLine("Test Case '-[NewTestCase testThatPasses]' passed (1.234 seconds).");
+        assertEquals(2, progress.getRemaining());
+    }
+
+    @Test
+    public void shouldSpillFailuresBeyondTestCaseBudget() throws Exception {
+        parser.setFailureBudgets(100, 1000, 10000);
+        parser.currentTestSuite = new TestSuite("host", "SpillingTestCase", new Date());
+        parser.currentTestCase = new TestCase("SpillingTestCase", "testThatFailsInALoop");
+        for(int i = 0; i < 10; i++) {
+            parser.handleLine("SpillingTestCase.m:21: error: -[SpillingTestCase testThatFailsInALoop] : Failure number " + i);
+        }
+        parser.handleLine("Test Case '-[SpillingTestCase testThatFailsInALoop]' failed (1.234 seconds).");
+        parser.close();
+
+        TestCase testCase = parser.currentTestSuite.getTestCases().get(0);
+        assertEquals(8, testCase.getTruncatedFailures());
+        assertEquals(3, testCase.getFailures().size());
+        assertEquals("8 further failures were truncated, see TEST-SpillingTestCase-failures.txt", testCase.getFailures().get(2).getMessage());
+        assertTrue(new File("test-reports", "TEST-SpillingTestCase-failures.txt").exists());
+
+        assertEquals(2, parser.getDiagnostics().size());
+        assertEquals(8, parser.getTruncatedTestFailures());
+    }
+
+    @Test
+    public void shouldSpillFailuresBeyondBuildBudgetWhenCollectingSuites() throws Exception {
+        parser.setWriteTestReports(false);
+        parser.setCollectTestSuites(true);
+        parser.setFailureBudgets(100, 100, 80);
+        for(int i = 0; i < 3; i++) {
+            parser.handleLine("Test Suite 'BudgetTestCase" + i + "' started at 2010-10-02 13:39:23 GMT 0000");
+            parser.handleLine("Test Case '-[BudgetTestCase" + i + " testFails]' started.");
+            parser.handleLine("BudgetTestCase.m:21: error: -[BudgetTestCase" + i + " testFails] : Failure number " + i);
+            parser.handleLine("Test Case '-[BudgetTestCase" + i + " testFails]' failed (0.001 seconds).");
+            parser.handleLine("Test Suite 'BudgetTestCase" + i + "' finished at 2010-10-02 13:39:24 GMT 0000.");
+        }
+        parser.close();
+
+        assertEquals(3, parser.getTestSuites().size());
+        assertEquals(0, parser.getTestSuites().get(0).getTestCases().get(0).getTruncatedFailures());
+        assertEquals(0, parser.getTestSuites().get(1).getTestCases().get(0).getTruncatedFailures());
+        assertEquals(1, parser.getTestSuites().get(2).getTestCases().get(0).getTruncatedFailures());
+        assertEquals(1, parser.getTruncatedTestFailures());
+    }
+}
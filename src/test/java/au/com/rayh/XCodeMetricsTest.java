@@ -0,0 +1,65 @@
+package au.com.rayh;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author ray
+ */
+public class XCodeMetricsTest {
+    XCodeMetrics metrics;
+
+    @Before
+    public void setUp() {
+        metrics = new XCodeMetrics();
+    }
+
+    private String write() {
+        StringWriter output = new StringWriter();
+        metrics.write(new PrintWriter(output));
+        return output.toString();
+    }
+
+    @Test
+    public void shouldCountParsedLinesAndBytes() {
+        metrics.lineParsed(10);
+        metrics.lineParsed(32);
+        String output = write();
+        assertTrue(output.contains("xcode_parser_lines_total 2\n"));
+        assertTrue(output.contains("xcode_parser_bytes_total 42\n"));
+    }
+
+    @Test
+    public void shouldWriteCumulativeHistogramBuckets() {
+        metrics.phase("xcodebuild", 3000);
+        metrics.phase("xcodebuild", 90000);
+        String output = write();
+        assertTrue(output.contains("xcode_build_phase_duration_seconds_bucket{phase=\"xcodebuild\",le=\"1.0\"} 0\n"));
+        assertTrue(output.contains("xcode_build_phase_duration_seconds_bucket{phase=\"xcodebuild\",le=\"5.0\"} 1\n"));
+        assertTrue(output.contains("xcode_build_phase_duration_seconds_bucket{phase=\"xcodebuild\",le=\"120.0\"} 2\n"));
+        assertTrue(output.contains("xcode_build_phase_duration_seconds_bucket{phase=\"xcodebuild\",le=\"+Inf\"} 2\n"));
+        assertTrue(output.contains("xcode_build_phase_duration_seconds_sum{phase=\"xcodebuild\"} 93.0\n"));
+        assertTrue(output.contains("xcode_build_phase_duration_seconds_count{phase=\"xcodebuild\"} 2\n"));
+    }
+
+    @Test
+    public void shouldCountToolLaunchesByTool() {
+        metrics.toolLaunched("agvtool");
+        metrics.toolLaunched("agvtool");
+        metrics.toolLaunched("xcodebuild");
+        String output = write();
+        assertTrue(output.contains("xcode_tool_launches_total{tool=\"agvtool\"} 2\n"));
+        assertTrue(output.contains("xcode_tool_launches_total{tool=\"xcodebuild\"} 1\n"));
+    }
+
+    @Test
+    public void shouldEscapeLabelValues() {
+        metrics.toolLaunched("xcode\"build\\4\n");
+        String output = write();
+        assertTrue(output.contains("xcode_tool_launches_total{tool=\"xcode\\\"build\\\\4\\n\"} 1\n"));
+    }
+}